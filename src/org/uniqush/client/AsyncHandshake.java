@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * The handshake of ConnectionHandler, cut into stages so that it can be
+ * driven by an event loop:
+ *
+ * 1. Read the server's hello (event loop)
+ * 2. Verify it and do the key exchange (worker executor)
+ * 3. Send the key exchange reply and the AUTH command (event loop)
+ * 4. Read the server's reply (event loop)
+ *
+ * No thread blocks while waiting for the network.
+ */
+class AsyncHandshake {
+	private final static int PHASE_HELLO = 0;
+	private final static int PHASE_CRYPTO = 1;
+	private final static int PHASE_REPLY_PREFIX = 2;
+	private final static int PHASE_REPLY = 3;
+	private final static int PHASE_DONE = 4;
+
+	private MessageCenter center;
+	private ConnectionHandler handler;
+	private Executor executor;
+	private NioSession session;
+	private CompletableFuture<MessageCenter> future;
+
+	private volatile int phase;
+	private int replySize;
+
+	public AsyncHandshake(MessageCenter center, ConnectionHandler handler,
+			Executor executor, CompletableFuture<MessageCenter> future) {
+		this.center = center;
+		this.handler = handler;
+		this.executor = executor;
+		this.future = future;
+		this.phase = PHASE_HELLO;
+	}
+
+	void setSession(NioSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * @return 0 if we are not expecting anything from the server for now.
+	 */
+	int nextChunkSize() {
+		switch (this.phase) {
+		case PHASE_HELLO:
+			return this.handler.serverHelloLength();
+		case PHASE_REPLY_PREFIX:
+			return this.handler.authReplyPrefixLength();
+		case PHASE_REPLY:
+			return this.replySize;
+		case PHASE_CRYPTO:
+			return 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param buf
+	 *            Holds the chunk. It belongs to the caller.
+	 */
+	boolean processChunk(byte[] buf, int offset, int length) {
+		switch (this.phase) {
+		case PHASE_HELLO:
+			this.phase = PHASE_CRYPTO;
+			final byte[] data = new byte[length];
+			System.arraycopy(buf, offset, data, 0, length);
+			try {
+				this.executor.execute(new Runnable() {
+					public void run() {
+						onServerHello(data);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				fail(e);
+				return false;
+			}
+			return true;
+		case PHASE_REPLY_PREFIX:
+			this.replySize = this.handler.authReplyChunkSize(buf, offset);
+			this.phase = PHASE_REPLY;
+			return true;
+		case PHASE_REPLY:
+			try {
+				this.handler.onAuthReply(buf, offset, length);
+			} catch (LoginException e) {
+				fail(e);
+				return false;
+			}
+			this.phase = PHASE_DONE;
+			if (!this.center.onHandshakeDone(this.session, this.handler)) {
+				this.future.completeExceptionally(new IOException(
+						"superseded by another connection"));
+				return false;
+			}
+			this.future.complete(this.center);
+			return true;
+		}
+		return false;
+	}
+
+	private void onServerHello(byte[] data) {
+		byte[] reply = null;
+		try {
+			reply = this.handler.onServerHello(data);
+		} catch (LoginException e) {
+			fail(e);
+			return;
+		} catch (RuntimeException e) {
+			fail(e);
+			return;
+		}
+		this.phase = PHASE_REPLY_PREFIX;
+		try {
+			this.session.write(reply);
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+		// The server may have been fast.
+		this.session.resume();
+	}
+
+	// Called from the loop thread and the worker executor.
+	synchronized void fail(Exception e) {
+		if (this.phase == PHASE_DONE) {
+			return;
+		}
+		this.phase = PHASE_DONE;
+		this.center.onHandshakeFailed(this.session, e);
+		this.future.completeExceptionally(e);
+	}
+}
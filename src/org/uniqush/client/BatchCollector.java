@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the messages and digests for a {@link BatchMessageHandler}
+ * until the reader reaches the end of a burst.
+ *
+ * Only used on the reader thread (or the event loop).
+ */
+class BatchCollector extends InboundStage {
+	private BatchMessageHandler handler;
+	private int maxBatch;
+	private List<InboundEvent> messages;
+	private List<Digest> digests;
+
+	public BatchCollector(BatchMessageHandler handler, int maxBatch) {
+		this.handler = handler;
+		this.maxBatch = maxBatch;
+		this.messages = null;
+		this.digests = null;
+	}
+
+	BatchMessageHandler getHandler() {
+		return this.handler;
+	}
+
+	@Override
+	protected void enqueue(InboundEvent e) {
+		switch (e.getType()) {
+		case InboundEvent.MESSAGE_FROM_SERVER:
+		case InboundEvent.MESSAGE_FROM_USER:
+			// Keep the order between messages and digests.
+			flushDigests();
+			if (this.messages == null) {
+				this.messages = new ArrayList<InboundEvent>();
+			}
+			this.messages.add(e);
+			if (this.messages.size() >= this.maxBatch) {
+				flushMessages();
+			}
+			break;
+		case InboundEvent.DIGEST_FROM_SERVER:
+		case InboundEvent.DIGEST_FROM_USER:
+			flushMessages();
+			if (this.digests == null) {
+				this.digests = new ArrayList<Digest>();
+			}
+			this.digests.add((Digest) e);
+			if (this.digests.size() >= this.maxBatch) {
+				flushDigests();
+			}
+			break;
+		default:
+			endOfBurst();
+			e.deliverTo(this.handler);
+			break;
+		}
+	}
+
+	private void flushMessages() {
+		if (this.messages != null) {
+			// The handler keeps the list.
+			List<InboundEvent> batch = this.messages;
+			this.messages = null;
+			this.handler.onMessages(batch);
+		}
+	}
+
+	private void flushDigests() {
+		if (this.digests != null) {
+			List<Digest> batch = this.digests;
+			this.digests = null;
+			this.handler.onDigests(batch);
+		}
+	}
+
+	@Override
+	void endOfBurst() {
+		flushMessages();
+		flushDigests();
+	}
+}
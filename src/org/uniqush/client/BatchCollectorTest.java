@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BatchCollectorTest {
+
+	private static class RecordingHandler implements BatchMessageHandler {
+		List<String> calls = new ArrayList<String>();
+
+		public void onMessages(List<InboundEvent> messages) {
+			calls.add("messages:" + messages.size());
+		}
+
+		public void onDigests(List<Digest> digests) {
+			calls.add("digests:" + digests.size());
+		}
+
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+			calls.add("single");
+		}
+
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+			calls.add("single");
+		}
+
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+			calls.add("single");
+		}
+
+		public void onMessageDigestFromUser(boolean online,
+				String dstService, String dstUser, String srcService,
+				String srcUser, int size, String id,
+				Map<String, String> parameters) {
+			calls.add("single");
+		}
+
+		public void onCloseStart() {
+		}
+
+		public void onClosed() {
+			calls.add("closed");
+		}
+
+		public void onError(Exception e) {
+		}
+	}
+
+	@Test
+	public void testBurst() {
+		RecordingHandler h = new RecordingHandler();
+		BatchCollector c = new BatchCollector(h, 100);
+		for (int i = 0; i < 3; i++) {
+			c.onMessageFromServer("s", "u", "" + i, new Message());
+		}
+		c.onMessageDigestFromServer(true, "s", "u", 10, "d", null);
+		c.onMessageFromUser("s", "u", "s", "alice", "4", new Message());
+		if (!h.calls.equals(Arrays.asList("messages:3", "digests:1"))) {
+			fail("bad calls: " + h.calls);
+		}
+		c.endOfBurst();
+		c.onClosed();
+		if (h.calls.size() != 4 || !h.calls.get(2).equals("messages:1")
+				|| !h.calls.get(3).equals("closed")) {
+			fail("bad calls: " + h.calls);
+		}
+	}
+
+	@Test
+	public void testMaxBatch() {
+		RecordingHandler h = new RecordingHandler();
+		BatchCollector c = new BatchCollector(h, 2);
+		for (int i = 0; i < 5; i++) {
+			c.onMessageFromServer("s", "u", "" + i, new Message());
+		}
+		c.endOfBurst();
+		if (!h.calls.equals(Arrays.asList("messages:2", "messages:2", "messages:1"))) {
+			fail("bad calls: " + h.calls);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.List;
+
+/**
+ * A MessageHandler which takes messages and digests in batches.
+ *
+ * When a message center is connected with a BatchMessageHandler, the
+ * messages and digests decoded from one burst of reads are collected and
+ * handed over in one call, e.g. the replay after requestAllSince(). The
+ * per-message methods of MessageHandler are not called for them.
+ * Consecutive messages go in one onMessages() call and consecutive digests
+ * in one onDigests() call, so the order between batches is the order they
+ * were received.
+ *
+ * The lists belong to the handler. onCloseStart(), onClosed() and onError()
+ * are called as usual, after the pending batch.
+ */
+public interface BatchMessageHandler extends MessageHandler {
+	/**
+	 * @param messages
+	 *            Messages from the server and forwarded messages from other
+	 *            users, in the order they were received.
+	 */
+	public void onMessages(List<InboundEvent> messages);
+
+	public void onDigests(List<Digest> digests);
+}
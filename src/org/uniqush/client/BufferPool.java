@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte arrays used to read and decode frames.
+ *
+ * Buffers are grouped by size classes of powers of two, from 512 bytes up
+ * to the largest possible frame. Each class keeps at most a fixed number
+ * of idle buffers; anything released beyond that is left to the GC.
+ *
+ * The pool is thread safe.
+ */
+public class BufferPool {
+	private final static int MIN_CLASS_SHIFT = 9;
+	// A frame is at most 64K plus the hmac.
+	private final static int MAX_CLASS_SHIFT = 17;
+
+	private List<ArrayBlockingQueue<byte[]>> classes;
+
+	private AtomicLong allocations;
+	private AtomicLong reuses;
+	private AtomicLong releases;
+	private AtomicLong discards;
+
+	/**
+	 * @param maxIdlePerClass
+	 *            How many idle buffers each size class may keep.
+	 */
+	public BufferPool(int maxIdlePerClass) {
+		if (maxIdlePerClass <= 0) {
+			throw new IllegalArgumentException("the pool should keep at least one buffer");
+		}
+		int n = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		this.classes = new ArrayList<ArrayBlockingQueue<byte[]>>(n);
+		for (int i = 0; i < n; i++) {
+			this.classes.add(new ArrayBlockingQueue<byte[]>(maxIdlePerClass));
+		}
+		this.allocations = new AtomicLong(0);
+		this.reuses = new AtomicLong(0);
+		this.releases = new AtomicLong(0);
+		this.discards = new AtomicLong(0);
+	}
+
+	private int classOf(int size) {
+		int shift = MIN_CLASS_SHIFT;
+		while ((1 << shift) < size) {
+			shift++;
+		}
+		return shift - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * @return A buffer of at least size bytes. Its content is undefined.
+	 */
+	public byte[] acquire(int size) {
+		int c = classOf(size);
+		if (c >= this.classes.size()) {
+			// Too large to be pooled.
+			this.allocations.incrementAndGet();
+			return new byte[size];
+		}
+		byte[] buf = this.classes.get(c).poll();
+		if (buf != null) {
+			this.reuses.incrementAndGet();
+			return buf;
+		}
+		this.allocations.incrementAndGet();
+		return new byte[1 << (c + MIN_CLASS_SHIFT)];
+	}
+
+	/**
+	 * Give the buffer back to the pool. The caller should not touch it
+	 * any more.
+	 */
+	public void release(byte[] buf) {
+		if (buf == null) {
+			return;
+		}
+		this.releases.incrementAndGet();
+		int c = classOf(buf.length);
+		if (c >= this.classes.size() || buf.length != (1 << (c + MIN_CLASS_SHIFT))) {
+			// Not one of ours.
+			this.discards.incrementAndGet();
+			return;
+		}
+		if (!this.classes.get(c).offer(buf)) {
+			this.discards.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drop all the idle buffers.
+	 */
+	public void clear() {
+		for (int i = 0; i < this.classes.size(); i++) {
+			this.classes.get(i).clear();
+		}
+	}
+
+	/**
+	 * @return Number of buffers allocated because the pool had none to
+	 *         give.
+	 */
+	public long getAllocations() {
+		return this.allocations.get();
+	}
+
+	/**
+	 * @return Number of acquisitions served by an idle buffer.
+	 */
+	public long getReuses() {
+		return this.reuses.get();
+	}
+
+	public long getReleases() {
+		return this.releases.get();
+	}
+
+	/**
+	 * @return Number of released buffers dropped because the pool was full.
+	 */
+	public long getDiscards() {
+		return this.discards.get();
+	}
+
+	/**
+	 * @return Number of idle buffers in the pool.
+	 */
+	public int getIdle() {
+		int n = 0;
+		for (int i = 0; i < this.classes.size(); i++) {
+			n += this.classes.get(i).size();
+		}
+		return n;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(2);
+		byte[] a = pool.acquire(100);
+		if (a.length < 100) {
+			fail("buffer too small");
+		}
+		pool.release(a);
+		byte[] b = pool.acquire(80);
+		if (a != b) {
+			fail("should reuse the released buffer");
+		}
+		if (pool.getAllocations() != 1 || pool.getReuses() != 1) {
+			fail("bad stats");
+		}
+	}
+
+	@Test
+	public void testBounded() {
+		BufferPool pool = new BufferPool(2);
+		byte[] a = pool.acquire(1000);
+		byte[] b = pool.acquire(1000);
+		byte[] c = pool.acquire(1000);
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+		if (pool.getIdle() != 2) {
+			fail("the pool should keep at most 2 buffers");
+		}
+		if (pool.getDiscards() != 1) {
+			fail("bad stats");
+		}
+	}
+
+	@Test
+	public void testForeignBuffer() {
+		BufferPool pool = new BufferPool(2);
+		pool.release(new byte[1000]);
+		if (pool.getIdle() != 0) {
+			fail("should not keep buffers of odd sizes");
+		}
+	}
+
+	@Test
+	public void testClear() {
+		BufferPool pool = new BufferPool(2);
+		pool.release(pool.acquire(1000));
+		pool.release(pool.acquire(100));
+		if (pool.getIdle() != 2) {
+			fail("should keep both");
+		}
+		pool.clear();
+		if (pool.getIdle() != 0) {
+			fail("should keep nothing");
+		}
+	}
+}
@@ -19,12 +19,13 @@ package org.uniqush.client;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
 
-class Command {
+/**
+ * A command exchanged with the server: a type, some string parameters
+ * and an optional message.
+ */
+public class Command {
 
 	public final static int CMDFLAG_COMPRESS = 1;
 	
@@ -169,7 +170,7 @@ class Command {
 	private byte type;
 	private ArrayList<String> params;
 	private Message msg;
-	private final Charset UTF_8 = Charset.forName("UTF-8");
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
 	
 	public boolean equals(Command cmd) {
 		if (cmd.type != this.type) {
@@ -224,13 +225,13 @@ class Command {
 		this.params.add(p);
 	}
 	
-	private int cutString(byte[] data, int start) {
-		for (int i = start; i < data.length; i++) {
+	private int cutString(byte[] data, int start, int limit) {
+		for (int i = start; i < limit; i++) {
 			if (data[i] == 0) {
 				return i;
 			}
 		}
-		return data.length;
+		return limit;
 	}
 	
 	public int nrParameters() {
@@ -240,146 +241,312 @@ class Command {
 		return this.params.size();
 	}
 	
-	public byte[] marshal() {
-		Map<String, String> header = null;
-		byte[] body = null;
-		
+	/**
+	 * @return Number of bytes of the UTF-8 form of s. Unpaired surrogates
+	 *         count as one byte, like String.getBytes() does.
+	 */
+	static int utf8Length(String s) {
+		int n = 0;
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n++;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < len
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					n += 4;
+					i++;
+				} else {
+					n++;
+				}
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Write the UTF-8 form of s into buf.
+	 * 
+	 * @return The offset right after the written bytes.
+	 */
+	static int encodeUtf8(String s, byte[] buf, int offset) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buf[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[offset++] = (byte) (0xC0 | (c >> 6));
+				buf[offset++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < len
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(i + 1));
+					i++;
+					buf[offset++] = (byte) (0xF0 | (cp >> 18));
+					buf[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[offset++] = (byte) (0x80 | (cp & 0x3F));
+				} else {
+					buf[offset++] = (byte) '?';
+				}
+			} else {
+				buf[offset++] = (byte) (0xE0 | (c >> 12));
+				buf[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[offset++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @return Number of bytes marshalTo() will write.
+	 */
+	public int marshaledSize() {
 		int nrBytes = 4;
-		int nrEntities = 0;
-		
 		if (this.params != null) {
-			nrEntities += this.params.size();
+			Iterator<String> iter = this.params.iterator();
+			while (iter.hasNext()) {
+				nrBytes += utf8Length(iter.next()) + 1;
+			}
 		}
-		
 		if (this.msg != null) {
-			header = this.msg.getHeader();
-			if (header != null) {
-				nrEntities += header.size() * 2;
-			}
-			body = this.msg.getBody();
-			if (body != null) {
-				nrBytes += body.length;
+			int rawLen = this.msg.rawHeaderLength();
+			if (rawLen >= 0) {
+				// A received message being forwarded as it is.
+				nrBytes += rawLen;
+			} else {
+				HeaderMap header = this.msg.headerMap();
+				if (header != null) {
+					int n = header.size();
+					for (int i = 0; i < n; i++) {
+						nrBytes += utf8Length(header.keyAt(i)) + 1;
+						nrBytes += utf8Length(header.valueAt(i)) + 1;
+					}
+				}
 			}
+			nrBytes += this.msg.getBodyLength();
 		}
-		
-		ArrayList<byte[]> list = null;
-		if (nrEntities > 0) {
-			list = new ArrayList<byte[]>(nrEntities);
+		return nrBytes;
+	}
 
-			if (this.params != null) {
-				Iterator<String> iter = this.params.iterator();
-				while(iter.hasNext()) {
-					String param = iter.next();
-					byte[] p = param.getBytes(UTF_8);
-					nrBytes += p.length + 1;
-					list.add(p);
-				}
-			}
-			if (header != null) {
-				Iterator<Entry<String, String>> iter = header.entrySet().iterator();
-				while (iter.hasNext()) {
-					Entry<String, String> entry = iter.next();
-					String key = entry.getKey();
-					String value = entry.getValue();
-					
-					byte[] keyb = key.getBytes(UTF_8);
-					byte[] valueb = value.getBytes(UTF_8);
-					
-					nrBytes += keyb.length + 1;
-					nrBytes += valueb.length + 1;
-					
-					list.add(keyb);
-					list.add(valueb);
+	/**
+	 * Marshal the command into buf, which should have at least
+	 * marshaledSize() bytes after offset.
+	 * 
+	 * @return Number of bytes written.
+	 */
+	public int marshalTo(byte[] buf, int offset) {
+		HeaderMap header = null;
+		int rawLen = -1;
+		int nrHeaders = 0;
+		if (this.msg != null) {
+			rawLen = this.msg.rawHeaderLength();
+			if (rawLen >= 0) {
+				nrHeaders = this.msg.rawNrHeaders();
+			} else {
+				header = this.msg.headerMap();
+				if (header != null) {
+					nrHeaders = header.size();
 				}
 			}
 		}
-		
-		byte[] ret = new byte[nrBytes];
-		
-		ret[0] = this.type;
+
+		buf[offset] = this.type;
+		buf[offset + 1] = 0;
+		buf[offset + 2] = 0;
+		buf[offset + 3] = 0;
 		if (this.params != null) {
 			int b1 = (0x0000000F & this.params.size());
-			ret[1] = (byte) (b1 << 4);
+			buf[offset + 1] = (byte) (b1 << 4);
 		}
-		
-		if (header != null) {
-			int n = header.size();
-			ret[2] = (byte)((0x0000FF00 & n) >> 8);
-			ret[3] = (byte) (0x000000FF & n);
-		}
-		int start = 4;
-		
-		if (list != null) {
-			Iterator<byte[]> iter = list.iterator();
+		buf[offset + 2] = (byte)((0x0000FF00 & nrHeaders) >> 8);
+		buf[offset + 3] = (byte) (0x000000FF & nrHeaders);
+		int start = offset + 4;
+
+		if (this.params != null) {
+			Iterator<String> iter = this.params.iterator();
 			while (iter.hasNext()) {
-				byte[] data = iter.next();
-				System.arraycopy(data, 0, ret, start, data.length);
-				start += data.length;
-				ret[start] = 0;
-				start++;
+				start = encodeUtf8(iter.next(), buf, start);
+				buf[start++] = 0;
+			}
+		}
+		if (rawLen >= 0) {
+			this.msg.copyRawHeaderTo(buf, start);
+			start += rawLen;
+		} else if (header != null) {
+			for (int i = 0; i < nrHeaders; i++) {
+				start = encodeUtf8(header.keyAt(i), buf, start);
+				buf[start++] = 0;
+				start = encodeUtf8(header.valueAt(i), buf, start);
+				buf[start++] = 0;
 			}
 		}
-		if (body != null) {
-			System.arraycopy(body, 0, ret, start, body.length);
+		if (this.msg != null) {
+			this.msg.copyBodyTo(buf, start);
+			start += this.msg.getBodyLength();
 		}
+		return start - offset;
+	}
+	
+	public byte[] marshal() {
+		byte[] ret = new byte[marshaledSize()];
+		marshalTo(ret, 0);
 		return ret;
 	}
 
 	public Command(byte[] data) {
-		if (data.length < 4) {
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * Decode the command from a slice of a (possibly larger) buffer.
+	 * Nothing refers to the buffer once the constructor returns, so the
+	 * buffer can be reused.
+	 */
+	public Command(byte[] data, int offset, int length) {
+		this(data, offset, length, false, null);
+	}
+
+	/**
+	 * Decode the parameters of the command, and leave its message in data
+	 * until it is asked for. The command keeps referring to data, which
+	 * should not be changed afterwards.
+	 */
+	static Command decodeLazily(byte[] data, int offset, int length) {
+		return new Command(data, offset, length, true, null);
+	}
+
+	/**
+	 * Like decodeLazily(data, offset, length), and take the names and
+	 * header keys from the table.
+	 */
+	static Command decodeLazily(byte[] data, int offset, int length,
+			StringTable names) {
+		return new Command(data, offset, length, true, names);
+	}
+
+	/**
+	 * @return Whether the i-th parameter of a command of the type is a
+	 *         service or user name, which is likely to come again.
+	 */
+	private static boolean isName(int type, int i) {
+		switch (type) {
+		case CMD_FWD:
+			return i == 0 || i == 1;
+		case CMD_DIGEST:
+			return i == 2 || i == 3;
+		}
+		return false;
+	}
+
+	private Command(byte[] data, int offset, int length, boolean lazy,
+			StringTable names) {
+		if (length < 4) {
 			return;
 		}
-		type = data[0];
-		int nrParams = ((int)(data[1] & 0xFF)) >> 4;
-		int nrHeaders = (int)(data[2] & 0xFF);
+		int limit = offset + length;
+		type = data[offset];
+		int nrParams = ((int)(data[offset + 1] & 0xFF)) >> 4;
+		int nrHeaders = (int)(data[offset + 2] & 0xFF);
 		nrHeaders = nrHeaders << 8;
-		nrHeaders |= (int)(data[3] & 0xFF);
+		nrHeaders |= (int)(data[offset + 3] & 0xFF);
 		
-		int start = 4;
+		int start = offset + 4;
 		
 		if (nrParams > 0) {
 			this.params = new ArrayList<String>(nrParams);
 			
 			for (int i = 0; i < nrParams; i++) {
-				int end = cutString(data, start);
-				int length = end - start;
-				if (length < 0 || length > data.length - start) {
+				int end = cutString(data, start, limit);
+				int len = end - start;
+				if (len < 0 || len > limit - start) {
 					break;
 				}
-				String p = new String(data, start, length, UTF_8);
+				String p = null;
+				if (names != null && isName(this.type, i)) {
+					p = names.get(data, start, len);
+				} else {
+					p = new String(data, start, len, UTF_8);
+				}
 				this.params.add(p);
 				start = end + 1;
 			}
 		}
-		HashMap<String, String> header = null;
+		if (lazy) {
+			this.msg = lazyMessage(data, start, limit, nrHeaders, names);
+			return;
+		}
+		HeaderMap header = null;
 		byte[] body = null;
 		if (nrHeaders > 0) {
-			header = new HashMap<String,String>(nrHeaders);
+			// The count comes from the server. Do not trust it too much.
+			header = new HeaderMap(Math.min(nrHeaders, 64));
 			
 			for (int i = 0; i < nrHeaders; i++) {
-				int end = cutString(data, start);
-				int length = end - start;
-				if (length < 0 || length > data.length - start) {
+				int end = cutString(data, start, limit);
+				int len = end - start;
+				if (len < 0 || len > limit - start) {
 					break;
 				}
-				String key = new String(data, start, length, UTF_8);
+				String key = new String(data, start, len, UTF_8);
 				start = end + 1;
-				end = cutString(data, start);
-				length = end - start;
-				if (length < 0 || length > data.length - start) {
+				end = cutString(data, start, limit);
+				len = end - start;
+				if (len < 0 || len > limit - start) {
 					break;
 				}
-				String value = new String(data, start, length, UTF_8);
+				String value = new String(data, start, len, UTF_8);
 				start = end + 1;
 				header.put(key, value);
 			}
 		}
-		if (start < data.length) {
-			body = new byte[data.length - start];
-			System.arraycopy(data, start, body, 0, data.length - start);
+		if (start < limit) {
+			body = new byte[limit - start];
+			System.arraycopy(data, start, body, 0, limit - start);
 		}
 		if (header != null || body != null) {
 			this.msg = new Message(header, body);
 		}
 	}
+
+	/**
+	 * Find where the headers and the body are, the same way the
+	 * constructor decodes them, without decoding anything.
+	 */
+	private Message lazyMessage(byte[] data, int start, int limit,
+			int nrHeaders, StringTable names) {
+		int headerStart = start;
+		int headerEnd = start;
+		int n = 0;
+		while (n < nrHeaders) {
+			int end = cutString(data, start, limit);
+			if (end >= limit) {
+				// The key is not terminated. Drop it.
+				start = limit;
+				break;
+			}
+			start = end + 1;
+			end = cutString(data, start, limit);
+			n++;
+			if (end >= limit) {
+				// The last value runs to the end.
+				headerEnd = -1;
+				start = limit;
+				break;
+			}
+			start = end + 1;
+			headerEnd = start;
+		}
+		if (n == 0 && start >= limit) {
+			return null;
+		}
+		return new Message(data, headerStart, headerEnd, n, start,
+				limit - start, names);
+	}
 }
@@ -17,22 +17,30 @@
 
 package org.uniqush.client;
 
-import java.util.List;
-
-class ErrorState extends State {
+/**
+ * What a {@link CommandProcessor} knows about, and can do to, the
+ * connection which received a command.
+ */
+public interface CommandContext {
+	public String getService();
 
-	public ErrorState(MessageHandler handler, String service, String username) {
-		super(handler, service, username);
-	}
+	public String getUsername();
 
-	@Override
-	public int chunkSize() {
-		return -1;
-	}
+	/**
+	 * @return The message handler of the connection. May be null.
+	 */
+	public MessageHandler getHandler();
 
-	@Override
-	public State transit(byte[] data, List<byte[]> reply) {
-		return this;
-	}
+	/**
+	 * Close the connection once the command is processed.
+	 */
+	public void close();
 
+	/**
+	 * Reconnect to another server once the command is processed.
+	 *
+	 * @param address
+	 *            host:port
+	 */
+	public void redirect(String address);
 }
@@ -18,7 +18,9 @@
 package org.uniqush.client;
 
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -30,10 +32,27 @@ import javax.crypto.ShortBufferException;
 import org.iq80.snappy.Snappy;
 
 class CommandMarshaler {
+	// Slots of the table of names and header keys.
+	private final static int NAME_TABLE_SIZE = 64;
+
 	private KeySet keySet;
+	private BufferPool pool;
+	// Created with the first command received.
+	private StringTable names;
 	
 	public CommandMarshaler(KeySet ks) {
+		this(ks, null);
+	}
+
+	/**
+	 * @param ks
+	 * @param pool
+	 *            Where to get the scratch space for compression. May be
+	 *            null.
+	 */
+	public CommandMarshaler(KeySet ks, BufferPool pool) {
 		this.keySet = ks;
+		this.pool = pool;
 	}
 	
 	public int prefixLength() {
@@ -41,13 +60,17 @@ class CommandMarshaler {
 	}
 	
 	public int chunkSize(byte[] prefix) {
+		return chunkSize(prefix, 0);
+	}
+
+	public int chunkSize(byte[] prefix, int offset) {
 		// First two bytes: The data size (little endian)
 		// The data is sent in the form:
 		// | data size (2 bytes, little endian) | data | hmac
 		// So we add the size of the hmac to the data size,
 		// and yield the total size (data plus hmac).
-		int b0 = prefix[0] & 0xFF;
-		int b1 = prefix[1] & 0xFF;
+		int b0 = prefix[offset] & 0xFF;
+		int b1 = prefix[offset + 1] & 0xFF;
 		return (b1 << 8) + (b0 << 0) + keySet.getDecryptHmacSize();
 		/*
 		int length = 0;
@@ -61,24 +84,102 @@ class CommandMarshaler {
 	}
 	
 	public Command unmarshalCommand(byte[] encrypted) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, IOException {
-		int hmaclen = keySet.getDecryptHmacSize();
-		int len = keySet.getDecryptedSize(encrypted.length - hmaclen);
-		byte[] encoded = new byte[len];
-		keySet.decrypt(encrypted, 0, encoded, 0);
-		
-		int paddingLen = ((int)(0xFF & encoded[0])) >> 3;
+		return unmarshalCommand(encrypted, 0, encrypted.length);
+	}
+
+	/**
+	 * Verify, decrypt and decode a chunk. The chunk is decrypted in place,
+	 * so its content is destroyed.
+	 * 
+	 * @param buf
+	 * @param offset
+	 * @param length
+	 *            Length of the chunk, including the hmac.
+	 */
+	public Command unmarshalCommand(byte[] buf, int offset, int length) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, IOException {
+		int len = keySet.decryptInPlace(buf, offset, length);
+		if (len <= 0) {
+			throw new StreamCorruptedException("empty command");
+		}
 		
-		byte[] data = new byte[encoded.length - 1 - paddingLen];
-		System.arraycopy(encoded, 1, data, 0, data.length);
-		if ((encoded[0] & Command.CMDFLAG_COMPRESS) != 0) {
-			//data = Snappy.uncompress(data);
-			System.out.println("Need to decompress");
-			data = Snappy.uncompress(data, 0, data.length);
+		int paddingLen = ((int)(0xFF & buf[offset])) >> 3;
+		int dataLen = len - 1 - paddingLen;
+		if (dataLen < 0) {
+			throw new StreamCorruptedException("bad padding");
+		}
+		// The command is decoded lazily, so it needs bytes of its own: buf
+		// is reused for the next frame.
+		if ((buf[offset] & Command.CMDFLAG_COMPRESS) == 0) {
+			byte[] data = new byte[dataLen];
+			System.arraycopy(buf, offset + 1, data, 0, dataLen);
+			return Command.decodeLazily(data, 0, dataLen, names());
+		}
+
+		int n = Snappy.getUncompressedLength(buf, offset + 1);
+		byte[] data = new byte[n];
+		n = Snappy.uncompress(buf, offset + 1, dataLen, data, 0);
+		return Command.decodeLazily(data, 0, n, names());
+	}
+
+	/**
+	 * Same as unmarshalCommand(byte[], int, int), on the bytes between the
+	 * position and the limit of buf, which are all consumed. Buffers
+	 * without a backing array, such as direct ones, are decrypted where
+	 * they are and only the plain text is copied out.
+	 */
+	public Command unmarshalCommand(ByteBuffer buf) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, IOException {
+		int pos = buf.position();
+		int length = buf.remaining();
+		if (buf.hasArray()) {
+			buf.position(pos + length);
+			return unmarshalCommand(buf.array(), buf.arrayOffset() + pos, length);
+		}
+		int len = keySet.decryptInPlace(buf);
+		if (len <= 0) {
+			throw new StreamCorruptedException("empty command");
+		}
+
+		int flag = 0xFF & buf.get(pos);
+		int paddingLen = flag >> 3;
+		int dataLen = len - 1 - paddingLen;
+		if (dataLen < 0) {
+			throw new StreamCorruptedException("bad padding");
+		}
+		buf.position(pos + 1);
+		if ((flag & Command.CMDFLAG_COMPRESS) == 0) {
+			byte[] data = new byte[dataLen];
+			buf.get(data);
+			buf.position(pos + length);
+			return Command.decodeLazily(data, 0, dataLen, names());
+		}
+
+		// Snappy only reads arrays.
+		byte[] compressed = acquire(dataLen);
+		buf.get(compressed, 0, dataLen);
+		buf.position(pos + length);
+		int n = Snappy.getUncompressedLength(compressed, 0);
+		byte[] data = new byte[n];
+		n = Snappy.uncompress(compressed, 0, dataLen, data, 0);
+		release(compressed);
+		return Command.decodeLazily(data, 0, n, names());
+	}
+
+	private StringTable names() {
+		StringTable t = this.names;
+		if (t == null) {
+			t = new StringTable(NAME_TABLE_SIZE);
+			this.names = t;
 		}
-		Command cmd = new Command(data);
-		return cmd;
+		return t;
 	}
 	
+	/**
+	 * Forget the table of names. Used when the connection is idle.
+	 */
+	void trim() {
+		this.names = null;
+	}
+
 	protected void setPrefix(byte[] prefix, int length) {
 		if (prefix.length < 2) {
 			return;
@@ -92,37 +193,92 @@ class CommandMarshaler {
 	}
 	
 	public byte[] marshalCommand(Command cmd, boolean compress) throws ProtocolException {
-		byte[] data = cmd.marshal();
-		byte[] compressed = data;
+		return marshalCommand(cmd, cmd.marshaledSize(), compress);
+	}
 
+	/**
+	 * Marshal, compress, pad and encrypt the command into one frame.
+	 */
+	public byte[] marshalCommand(Command cmd, int size, boolean compress) throws ProtocolException {
+		byte[] frame = encodeCommand(cmd, size, compress);
+		sealFrame(frame);
+		return frame;
+	}
+
+	/**
+	 * Marshal, compress and pad the command into a frame:
+	 * 
+	 * | size (2 bytes) | flag | command | padding | room for the hmac |
+	 * 
+	 * Without compression, the command is written right into the frame.
+	 * 
+	 * This method is thread safe: it does not touch the keys. The frame
+	 * should be passed to sealFrame() before it is sent.
+	 * 
+	 * @param cmd
+	 * @param size
+	 *            cmd.marshaledSize()
+	 * @param compress
+	 */
+	public byte[] encodeCommand(Command cmd, int size, boolean compress) {
+		byte[] scratch = null;
+		int dataLen = size;
 		if (compress) {
-			compressed = Snappy.compress(data);
+			// The compressed size is not known until we have compressed it.
+			// So we marshal into a scratch buffer first.
+			byte[] data = acquire(size);
+			scratch = acquire(Snappy.maxCompressedLength(size));
+			cmd.marshalTo(data, 0);
+			dataLen = Snappy.compress(data, 0, size, scratch, 0);
+			release(data);
 		}
-		
-		int nrBlk = (compressed.length + 16) / 16;
-		int paddingLen = (nrBlk * 16) - (compressed.length + 1);
-		
-		byte[] encoded = new byte[compressed.length + 1 + paddingLen];
-		// clear the flag field.
-		encoded[0] = 0;
-		encoded[0] = (byte) (paddingLen << 3);
+
+		int nrBlk = (dataLen + 16) / 16;
+		int paddingLen = (nrBlk * 16) - (dataLen + 1);
+		int n = dataLen + 1 + paddingLen;
+		int prefixSz = prefixLength();
+		int hmacSz = keySet.getEncryptHmacSize();
+		byte[] frame = new byte[prefixSz + n + hmacSz];
+
+		frame[prefixSz] = (byte) (paddingLen << 3);
 		if (compress) {
-			encoded[0] |= Command.CMDFLAG_COMPRESS;
+			frame[prefixSz] |= Command.CMDFLAG_COMPRESS;
+			System.arraycopy(scratch, 0, frame, prefixSz + 1, dataLen);
+			release(scratch);
+		} else {
+			cmd.marshalTo(frame, prefixSz + 1);
 		}
-		System.arraycopy(compressed, 0, encoded, 1, compressed.length);
-		int n = encoded.length;
-		int prefixSz = 2;
-		
-		n = keySet.getEncryptedSize(n);
-		int hmacSz = keySet.getEncryptHmacSize();
-		byte[] encrypted = new byte[n + hmacSz + prefixSz];
-		
+		setPrefix(frame, n);
+		return frame;
+	}
+
+	/**
+	 * Encrypt the frame built by encodeCommand() in place and fill in its
+	 * hmac.
+	 * 
+	 * AES-CTR carries its counter from one frame to the next, so frames
+	 * must be sealed one at a time and in the order they are sent.
+	 */
+	public void sealFrame(byte[] frame) throws ProtocolException {
+		int prefixSz = prefixLength();
+		int n = frame.length - prefixSz - keySet.getEncryptHmacSize();
 		try {
-			keySet.encrypt(encoded, 0, encrypted, prefixSz);
+			keySet.encryptInPlace(frame, prefixSz, n);
 		} catch (Exception e) {
 			throw new ProtocolException(e.getMessage());
 		}
-		setPrefix(encrypted, n);
-		return encrypted;
+	}
+
+	private byte[] acquire(int size) {
+		if (this.pool != null) {
+			return this.pool.acquire(size);
+		}
+		return new byte[size];
+	}
+
+	private void release(byte[] buf) {
+		if (this.pool != null) {
+			this.pool.release(buf);
+		}
 	}
 }
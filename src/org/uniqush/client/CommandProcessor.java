@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+
+/**
+ * Handles one type of command received from the server. Processors are
+ * registered in a {@link CommandRegistry}.
+ */
+public interface CommandProcessor {
+	/**
+	 * Called on the reader thread (or the event loop) for each command of
+	 * the type the processor is registered for. Should not block.
+	 *
+	 * @param cmd
+	 *            The command. Its content should not be kept after the
+	 *            call unless it is copied.
+	 * @param ctx
+	 *            The connection which received the command.
+	 * @throws IOException
+	 *             If the command is malformed. The connection is closed
+	 *             and the message handler is told about the error.
+	 */
+	public void process(Command cmd, CommandContext ctx) throws IOException;
+}
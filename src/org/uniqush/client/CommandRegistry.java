@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides what to do with each command received from the server. The
+ * processors are looked up by the command type, so a new type of command
+ * only needs a new processor.
+ *
+ * A new registry handles the standard commands the way the message
+ * handler expects. Applications may register their own processors, for
+ * example IGNORE for CMD_DIGEST to drop all digests, or a processor which
+ * does some work and then calls the standard one.
+ *
+ * The registry also counts the commands of each type and the time spent
+ * processing them. One registry may serve several message centers.
+ */
+public class CommandRegistry {
+	public final static int NR_TYPES = 256;
+
+	/**
+	 * Does nothing.
+	 */
+	public final static CommandProcessor IGNORE = new CommandProcessor() {
+		public void process(Command cmd, CommandContext ctx) {
+		}
+	};
+
+	/**
+	 * CMD_DATA: calls onMessageFromServer().
+	 */
+	public final static CommandProcessor DATA = new CommandProcessor() {
+		public void process(Command cmd, CommandContext ctx) {
+			MessageHandler handler = ctx.getHandler();
+			if (handler != null) {
+				handler.onMessageFromServer(ctx.getService(), ctx.getUsername(),
+						cmd.getParameter(0), cmd.getMessage());
+			}
+		}
+	};
+
+	/**
+	 * CMD_FWD: calls onMessageFromUser().
+	 */
+	public final static CommandProcessor FORWARD = new CommandProcessor() {
+		public void process(Command cmd, CommandContext ctx) throws IOException {
+			String sender = cmd.getParameter(0);
+			if (sender == null) {
+				throw new StreamCorruptedException("no sender in forward message");
+			}
+			String senderService = cmd.getParameter(1);
+			if (senderService == null) {
+				senderService = ctx.getService();
+			}
+			String id = cmd.getParameter(2);
+			MessageHandler handler = ctx.getHandler();
+			if (handler != null) {
+				handler.onMessageFromUser(ctx.getService(), ctx.getUsername(),
+						senderService, sender, id, cmd.getMessage());
+			}
+		}
+	};
+
+	/**
+	 * CMD_DIGEST: calls onMessageDigestFromServer() or
+	 * onMessageDigestFromUser().
+	 */
+	public final static CommandProcessor DIGEST = new CommandProcessor() {
+		public void process(Command cmd, CommandContext ctx) throws IOException {
+			if (cmd.nrParameters() < 2) {
+				throw new StreamCorruptedException("bad server implementation: too little parameters for digest");
+			}
+			String szStr = cmd.getParameter(0);
+			int size = Integer.parseInt(szStr);
+			String msgId = cmd.getParameter(1);
+			if (msgId == null || msgId.length() <= 0) {
+				throw new StreamCorruptedException("bad server implementation: invalid msgId");
+			}
+			Message msg = cmd.getMessage();
+			Map<String, String> info = null;
+			if (msg != null) {
+				info = msg.getHeader();
+			}
+			MessageHandler handler = ctx.getHandler();
+			String sender = cmd.getParameter(2);
+			if (sender == null) {
+				handler.onMessageDigestFromServer(true, ctx.getService(),
+						ctx.getUsername(), size, msgId, info);
+			} else {
+				String senderService = cmd.getParameter(3);
+				if (senderService == null) {
+					senderService = ctx.getService();
+				}
+				handler.onMessageDigestFromUser(true, ctx.getService(),
+						ctx.getUsername(), senderService, sender, size, msgId, info);
+			}
+		}
+	};
+
+	/**
+	 * CMD_REDIRECT: reconnects to one of the given servers, chosen
+	 * randomly.
+	 */
+	public final static CommandProcessor REDIRECT = new CommandProcessor() {
+		private Random random = new Random();
+
+		public void process(Command cmd, CommandContext ctx) {
+			if (cmd.nrParameters() <= 0) {
+				// This is a bad command. Ignore it.
+				return;
+			}
+			int idx = this.random.nextInt(cmd.nrParameters());
+			ctx.redirect(cmd.getParameter(idx));
+		}
+	};
+
+	/**
+	 * CMD_BYE: closes the connection.
+	 */
+	public final static CommandProcessor BYE = new CommandProcessor() {
+		public void process(Command cmd, CommandContext ctx) {
+			ctx.close();
+		}
+	};
+
+	// Replaced as a whole by register(), so the reader never locks.
+	private volatile CommandProcessor[] processors;
+
+	private AtomicLongArray counts;
+	private AtomicLongArray totalNanos;
+	private AtomicLongArray maxNanos;
+
+	public CommandRegistry() {
+		CommandProcessor[] p = new CommandProcessor[NR_TYPES];
+		p[Command.CMD_DATA] = DATA;
+		p[Command.CMD_FWD] = FORWARD;
+		p[Command.CMD_DIGEST] = DIGEST;
+		p[Command.CMD_REDIRECT] = REDIRECT;
+		p[Command.CMD_BYE] = BYE;
+		this.processors = p;
+		this.counts = new AtomicLongArray(NR_TYPES);
+		this.totalNanos = new AtomicLongArray(NR_TYPES);
+		this.maxNanos = new AtomicLongArray(NR_TYPES);
+	}
+
+	private static int index(int type) {
+		if (type < 0 || type >= NR_TYPES) {
+			throw new IllegalArgumentException("bad command type: " + type);
+		}
+		return type;
+	}
+
+	/**
+	 * @param type
+	 *            One of Command.CMD_*, or any other type the server may
+	 *            send.
+	 * @param processor
+	 *            Null to ignore the commands of this type.
+	 * @return The processor registered before, which may be null.
+	 */
+	public synchronized CommandProcessor register(int type, CommandProcessor processor) {
+		int i = index(type);
+		CommandProcessor[] p = this.processors.clone();
+		CommandProcessor old = p[i];
+		p[i] = processor;
+		this.processors = p;
+		return old;
+	}
+
+	public CommandProcessor getProcessor(int type) {
+		return this.processors[index(type)];
+	}
+
+	/**
+	 * Run the processor of the command and account for it.
+	 */
+	void process(Command cmd, CommandContext ctx) throws IOException {
+		int type = cmd.getType() & 0xFF;
+		CommandProcessor p = this.processors[type];
+		long start = System.nanoTime();
+		try {
+			if (p != null) {
+				p.process(cmd, ctx);
+			}
+		} finally {
+			long t = System.nanoTime() - start;
+			this.counts.incrementAndGet(type);
+			this.totalNanos.addAndGet(type, t);
+			long max = this.maxNanos.get(type);
+			while (t > max && !this.maxNanos.compareAndSet(type, max, t)) {
+				max = this.maxNanos.get(type);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of commands of the type received so far, including
+	 *         the ignored ones.
+	 */
+	public long getCount(int type) {
+		return this.counts.get(index(type));
+	}
+
+	/**
+	 * @return Time spent in the processor of the type.
+	 */
+	public long getTotalNanos(int type) {
+		return this.totalNanos.get(index(type));
+	}
+
+	public long getMaxNanos(int type) {
+		return this.maxNanos.get(index(type));
+	}
+
+	public long getAverageNanos(int type) {
+		int i = index(type);
+		long n = this.counts.get(i);
+		if (n == 0) {
+			return 0;
+		}
+		return this.totalNanos.get(i) / n;
+	}
+
+	/**
+	 * Set all the counters to zero.
+	 */
+	public void resetStats() {
+		for (int i = 0; i < NR_TYPES; i++) {
+			this.counts.set(i, 0);
+			this.totalNanos.set(i, 0);
+			this.maxNanos.set(i, 0);
+		}
+	}
+}
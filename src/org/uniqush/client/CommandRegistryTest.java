@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CommandRegistryTest {
+
+	private static class RecordingContext implements CommandContext, MessageHandler {
+		List<String> calls = new ArrayList<String>();
+
+		public String getService() {
+			return "service";
+		}
+
+		public String getUsername() {
+			return "user";
+		}
+
+		public MessageHandler getHandler() {
+			return this;
+		}
+
+		public void close() {
+			calls.add("close");
+		}
+
+		public void redirect(String address) {
+			calls.add("redirect:" + address);
+		}
+
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+			calls.add("server:" + id);
+		}
+
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+			calls.add("user:" + srcService + ":" + srcUser + ":" + id);
+		}
+
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+			calls.add("digest:" + id);
+		}
+
+		public void onMessageDigestFromUser(boolean online,
+				String dstService, String dstUser, String srcService,
+				String srcUser, int size, String id,
+				Map<String, String> parameters) {
+			calls.add("digest:" + srcUser + ":" + id);
+		}
+
+		public void onCloseStart() {
+		}
+
+		public void onClosed() {
+		}
+
+		public void onError(Exception e) {
+		}
+	}
+
+	private static Command command(int type, String... params) {
+		Command cmd = new Command(type, null);
+		for (String p : params) {
+			cmd.AppendParameter(p);
+		}
+		return cmd;
+	}
+
+	@Test
+	public void testStandardProcessors() throws IOException {
+		CommandRegistry registry = new CommandRegistry();
+		RecordingContext ctx = new RecordingContext();
+		registry.process(command(Command.CMD_DATA, "id1"), ctx);
+		registry.process(command(Command.CMD_FWD, "bob", null, "id2"), ctx);
+		registry.process(command(Command.CMD_DIGEST, "10", "id3"), ctx);
+		registry.process(command(Command.CMD_REDIRECT, "example.com:8964"), ctx);
+		registry.process(command(Command.CMD_BYE), ctx);
+		registry.process(command(Command.CMD_SETTING), ctx);
+
+		String[] expected = { "server:id1", "user:service:bob:id2",
+				"digest:id3", "redirect:example.com:8964", "close" };
+		assertEquals(expected.length, ctx.calls.size());
+		for (int i = 0; i < expected.length; i++) {
+			if (!expected[i].equals(ctx.calls.get(i))) {
+				fail("expected " + expected[i] + ", got " + ctx.calls.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testRegister() throws IOException {
+		CommandRegistry registry = new CommandRegistry();
+		RecordingContext ctx = new RecordingContext();
+		CommandProcessor old = registry.register(Command.CMD_DIGEST, CommandRegistry.IGNORE);
+		assertTrue(old == CommandRegistry.DIGEST);
+		registry.process(command(Command.CMD_DIGEST, "10", "id"), ctx);
+		assertTrue(ctx.calls.isEmpty());
+
+		// A type unknown to the standard registry.
+		registry.register(200, new CommandProcessor() {
+			public void process(Command cmd, CommandContext c) {
+				c.close();
+			}
+		});
+		registry.process(command(200), ctx);
+		assertEquals(1, ctx.calls.size());
+
+		try {
+			registry.register(256, CommandRegistry.IGNORE);
+			fail("bad type accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testStats() throws IOException {
+		CommandRegistry registry = new CommandRegistry();
+		RecordingContext ctx = new RecordingContext();
+		for (int i = 0; i < 3; i++) {
+			registry.process(command(Command.CMD_DATA, "id"), ctx);
+		}
+		try {
+			registry.process(command(Command.CMD_FWD), ctx);
+			fail("forward without sender accepted");
+		} catch (IOException e) {
+		}
+		assertEquals(3, registry.getCount(Command.CMD_DATA));
+		assertEquals(1, registry.getCount(Command.CMD_FWD));
+		assertEquals(0, registry.getCount(Command.CMD_DIGEST));
+		assertTrue(registry.getMaxNanos(Command.CMD_DATA) <= registry.getTotalNanos(Command.CMD_DATA));
+		registry.resetStats();
+		assertEquals(0, registry.getCount(Command.CMD_DATA));
+	}
+}
@@ -19,7 +19,11 @@ package org.uniqush.client;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -101,4 +105,124 @@ public class CommandTest {
 		}
 	}
 
+	@Test
+	public void testCommandFromSlice() {
+		byte[] data = {9,9,1,32,0,0,104,101,108,108,111,0,0,9,9};
+		Command cmd = new Command(data, 2, 11);
+		if (cmd.getType() != 1 || cmd.nrParameters() != 2) {
+			fail("bad command");
+		}
+		if (!cmd.getParameter(0).equals("hello")) {
+			fail("first parameter is wrong");
+		}
+		if (cmd.getMessage() != null) {
+			fail("should not read beyond the slice");
+		}
+	}
+
+	@Test
+	public void testMarshalUtf8() {
+		String[] strs = {"h\u00e9llo", "\u4f60\u597d", "\ud83d\ude00", "bad\ud83d"};
+		Command cmd = new Command(1, null);
+		int size = 4;
+		for (int i = 0; i < strs.length; i++) {
+			cmd.AppendParameter(strs[i]);
+			size += strs[i].getBytes(Charset.forName("UTF-8")).length + 1;
+		}
+		if (cmd.marshaledSize() != size) {
+			fail("bad size");
+		}
+		Command decoded = new Command(cmd.marshal());
+		for (int i = 0; i < 3; i++) {
+			if (!strs[i].equals(decoded.getParameter(i))) {
+				fail("bad encoding: " + strs[i]);
+			}
+		}
+		if (!"bad?".equals(decoded.getParameter(3))) {
+			fail("unpaired surrogate should become '?'");
+		}
+	}
+
+	private static Command dataCommand() {
+		Message msg = new Message();
+		msg.put("title", "h\u00e9llo");
+		msg.put("from", "bob");
+		msg.put(new byte[] {1, 2, 3});
+		Command cmd = new Command(Command.CMD_DATA, msg);
+		cmd.AppendParameter("id");
+		return cmd;
+	}
+
+	@Test
+	public void testLazyMessage() {
+		byte[] data = dataCommand().marshal();
+		Command cmd = Command.decodeLazily(data, 0, data.length);
+		if (!"id".equals(cmd.getParameter(0))) {
+			fail("bad parameter");
+		}
+		Message msg = cmd.getMessage();
+		if (!"bob".equals(msg.get("from")) || msg.get("fro") != null
+				|| msg.get("nothing") != null) {
+			fail("bad lookup");
+		}
+		ByteBuffer body = msg.getBodyBuffer();
+		if (body.remaining() != 3 || body.get(0) != 1 || body.get(2) != 3) {
+			fail("bad body buffer");
+		}
+		try {
+			body.put(0, (byte) 9);
+			fail("body buffer should be read-only");
+		} catch (ReadOnlyBufferException e) {
+		}
+
+		Map<String, String> header = msg.getHeader();
+		if (header.size() != 2 || !"h\u00e9llo".equals(header.get("title"))) {
+			fail("bad header");
+		}
+		if (!Arrays.equals(new byte[] {1, 2, 3}, msg.getBody())) {
+			fail("bad body");
+		}
+	}
+
+	@Test
+	public void testLazyMatchesEager() {
+		byte[] data = dataCommand().marshal();
+		// Cut the command everywhere, including in the middle of the
+		// headers.
+		for (int len = 4; len <= data.length; len++) {
+			Command eager = new Command(data, 0, len);
+			Command lazy = Command.decodeLazily(data, 0, len);
+			Message a = eager.getMessage();
+			Message b = lazy.getMessage();
+			if (a == null || b == null) {
+				if (b != null && !b.isEmpty() || a != null && !a.isEmpty()) {
+					fail("message lost at length " + len);
+				}
+				continue;
+			}
+			if (!a.getHeader().equals(b.getHeader())) {
+				fail("different headers at length " + len);
+			}
+			if (!Arrays.equals(a.getBody(), b.getBody())) {
+				fail("different bodies at length " + len);
+			}
+		}
+	}
+
+	@Test
+	public void testForwardUndecoded() {
+		Command orig = dataCommand();
+		byte[] data = orig.marshal();
+		Command lazy = Command.decodeLazily(data, 0, data.length);
+		// Marshaled from the raw bytes.
+		if (!Arrays.equals(data, lazy.marshal())) {
+			fail("bad forward");
+		}
+		lazy.getMessage().put("extra", "1");
+		Command decoded = new Command(lazy.marshal());
+		if (!"1".equals(decoded.getMessage().get("extra"))
+				|| !"bob".equals(decoded.getMessage().get("from"))) {
+			fail("bad marshal after change");
+		}
+	}
 }
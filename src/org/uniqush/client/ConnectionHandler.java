@@ -43,9 +43,9 @@ import javax.crypto.ShortBufferException;
 import javax.security.auth.login.LoginException;
 
 import org.uniqush.diffiehellman.DHGroup;
+import org.uniqush.diffiehellman.DHKeyPool;
 import org.uniqush.diffiehellman.DHPrivateKey;
 import org.uniqush.diffiehellman.DHPublicKey;
-import org.uniqush.rsa.RSASSAPSSVerifier;
 
 class ConnectionHandler {
 	final static int ENCR_KEY_LENGTH = 32;
@@ -69,8 +69,15 @@ class ConnectionHandler {
 	private AtomicInteger id;
 	
 	private CommandMarshaler marshaler;
+	private BufferPool bufferPool;
+	private CommandRegistry registry;
+	// Where to take our DH key from. May be null.
+	private DHKeyPool keyPool;
+	// Length of our DH private key. Zero for the full length.
+	private int dhExponentBits;
 	
-	private State currentState;
+	// Null until the handshake is done.
+	private FrameDecoder decoder;
 	
 	private int compressThreshold;
 	
@@ -95,7 +102,11 @@ class ConnectionHandler {
 			int port,
 			String service,
 			String username,
-			CredentialProvider cp) {
+			CredentialProvider cp,
+			BufferPool pool,
+			CommandRegistry registry,
+			DHKeyPool keyPool,
+			int dhExponentBits) {
 		this.handler = handler;
 		this.service = service;
 		this.username = username;
@@ -103,10 +114,14 @@ class ConnectionHandler {
 		this.port = port;
 		this.compressThreshold = 512;
 		this.credentialProvider = cp;
+		this.bufferPool = pool;
+		this.registry = registry;
+		this.keyPool = keyPool;
+		this.dhExponentBits = dhExponentBits;
 		
 		this.id = new AtomicInteger(ConnectionHandler.nextId.addAndGet(1));
 		
-		this.currentState = new ErrorState(this.handler, this.service, this.username);
+		this.decoder = null;
 	}
 	
 	private int readFull(InputStream istream, byte[] buf, int length) {
@@ -125,34 +140,87 @@ class ConnectionHandler {
 		return n;
 	}
 	
+	/**
+	 * Drop what can be built again. Called by the reader when the
+	 * connection is idle.
+	 */
+	void trim() {
+		if (this.decoder != null) {
+			this.decoder.trim();
+		}
+		if (this.marshaler != null) {
+			this.marshaler.trim();
+		}
+	}
+
 	public void onError(Exception e) {
-		this.currentState.onError(e);
+		if (this.handler != null) {
+			this.handler.onError(e);
+		}
 	}
 	
 	public void onCloseStart() {
-		this.currentState.onCloseStart();
+		if (this.handler != null) {
+			this.handler.onCloseStart();
+		}
 	}
 	
 	public void onClosed() {
-		this.currentState.onClosed();
+		if (this.handler != null) {
+			this.handler.onClosed();
+		}
 	}
 	
 	public int nextChunkSize() {
-		return this.currentState.chunkSize();
+		if (this.decoder == null) {
+			return -1;
+		}
+		return this.decoder.chunkSize();
 	}
 	
-	public Action onData(byte[] data, List<byte[]> reply) {
-		this.currentState = this.currentState.transit(data, reply);
-		return this.currentState.getAction();
+	/**
+	 * @return What the connection should do, or null to just go on.
+	 */
+	public Action onData(byte[] data, int offset, int length) {
+		if (this.decoder == null) {
+			return null;
+		}
+		return this.decoder.onChunk(data, offset, length);
+	}
+
+	/**
+	 * @return Frames to send because of the last chunk, or null if there is
+	 *         none.
+	 */
+	public List<byte[]> takeReplies() {
+		if (this.decoder == null) {
+			return null;
+		}
+		return this.decoder.takeReplies();
 	}
 	
+	/**
+	 * Encode the command into a frame which is not encrypted yet. Like all
+	 * the marshal methods below, it may be called by several threads at
+	 * once. The frame should be passed to sealFrame() right before it is
+	 * sent.
+	 */
 	protected byte[] marshalCommand(Command cmd) throws ProtocolException {
-		int size = cmd.marshal().length;
+		int size = cmd.marshaledSize();
 		boolean compress = false;
 		if (size > this.compressThreshold) {
 			compress = true;
 		}
-		return this.marshaler.marshalCommand(cmd, compress);
+		return this.marshaler.encodeCommand(cmd, size, compress);
+	}
+
+	/**
+	 * Encrypt a frame returned by one of the marshal methods. Frames must
+	 * be sealed one at a time, in the order they are written to the
+	 * socket.
+	 */
+	public void sealFrame(byte[] frame) throws ProtocolException {
+		this.marshaler.sealFrame(frame);
 	}
 	
 	public byte[] marshalRequestAllSince(Date since) throws ProtocolException {
@@ -246,13 +314,30 @@ class ConnectionHandler {
 		return marshalCommand(cmd);
 	}
 	
-	public void handshake(InputStream istream,
-			OutputStream ostream) throws LoginException {
+	/**
+	 * @return The size of the first message sent by the server:
+	 *         | version | DH public key | signature | nonce |
+	 */
+	int serverHelloLength() {
 		RSAPublicKey rsaPub = this.credentialProvider.getPublicKey(this.addr, this.port);
 		int siglen = (rsaPub.getModulus().bitLength() + 7)/8;
-		byte[] data = new byte[DH_PUBLIC_KEY_LENGTH + siglen + NONCE_LENGTH + 1];
-		int n = readFull(istream, data, data.length);
-		if (n != data.length) {
+		return DH_PUBLIC_KEY_LENGTH + siglen + NONCE_LENGTH + 1;
+	}
+
+	/**
+	 * Verify the server's hello, do the key exchange and prepare the
+	 * authentication request. This is where the handshake spends its CPU.
+	 * 
+	 * @param data
+	 *            The server's hello, of serverHelloLength() bytes.
+	 * @return The data which should be sent back to the server: the key
+	 *         exchange reply followed by the AUTH command.
+	 * @throws LoginException
+	 */
+	byte[] onServerHello(byte[] data) throws LoginException {
+		RSAPublicKey rsaPub = this.credentialProvider.getPublicKey(this.addr, this.port);
+		int siglen = (rsaPub.getModulus().bitLength() + 7)/8;
+		if (data.length != DH_PUBLIC_KEY_LENGTH + siglen + NONCE_LENGTH + 1) {
 			throw new LoginException("no enough data");
 		}
 		if (data[0] != CURRENT_PROTOCOL_VERSION) {
@@ -267,16 +352,7 @@ class ConnectionHandler {
 		try {
 			
 			// Verify the signature from the server. Make sure there is no MITM attack.
-			//Signature sign = Signature.getInstance("SHA256withRSA/PSS", "BC");
-			Signature sign = null;
-			try {
-				sign = Signature.getInstance("SHA256withRSA/PSS", "BC");
-			} catch (NoSuchAlgorithmException e) {
-				// If there is no SHA256withRSA/PSS, then we should use
-				// our own home brewed code.
-				// Yes, I'm talking about you, android.
-				sign = new RSASSAPSSVerifier("SHA256");
-			}
+			Signature sign = CryptoProviders.pssVerifier();
 			sign.initVerify(rsaPub);
 			sign.update(data, 0, DH_PUBLIC_KEY_LENGTH + 1);
 			boolean goodsign = sign.verify(data, DH_PUBLIC_KEY_LENGTH + 1, siglen);
@@ -285,25 +361,40 @@ class ConnectionHandler {
 				throw new LoginException("bad signature");
 			}
 			
-			// Generate a DH key.
+			// Generate a DH key, unless one is ready. DHGroup.equals()
+			// only looks at the group itself, so the exponent length of the
+			// pool's keys is checked as well.
 			DHGroup group = DHGroup.getGroup(DH_GROUP_ID);
-			DHPrivateKey dhpriv = group.generatePrivateKey(new SecureRandom());
+			if (this.dhExponentBits > 0) {
+				group = group.withExponentBits(this.dhExponentBits);
+			}
+			DHPrivateKey dhpriv = null;
+			if (this.keyPool != null && group.equals(this.keyPool.getGroup())
+					&& group.getExponentBits() == this.keyPool.getGroup().getExponentBits()) {
+				dhpriv = this.keyPool.take();
+			} else {
+				dhpriv = group.generatePrivateKey(new SecureRandom());
+			}
 			DHPublicKey mypub = dhpriv.getPublicKey();
 			DHPublicKey serverpub = new DHPublicKey(dhpub);
 			byte[] masterKey = group.computeKey(serverpub, dhpriv);
 			
-			byte[] keyExReply = new byte[DH_PUBLIC_KEY_LENGTH + AUTH_KEY_LENGTH + 1];
+			int keyExLen = DH_PUBLIC_KEY_LENGTH + AUTH_KEY_LENGTH + 1;
+			byte[] keyExReply = new byte[keyExLen];
 			keyExReply[0] = CURRENT_PROTOCOL_VERSION;
-			byte[] mydhpubBytes = mypub.toByteArray();
+			// The key is shorter than the modulus once in a while.
+			byte[] mydhpubBytes = mypub.toByteArray(DH_PUBLIC_KEY_LENGTH);
 			System.arraycopy(mydhpubBytes, 0, keyExReply, 1, DH_PUBLIC_KEY_LENGTH);
 			
 			// Calculate keys and send the message back;
 			KeySet keySet = new KeySet(masterKey, nonce);
 			byte[] clienthmac = keySet.clientHmac(keyExReply, 0, DH_PUBLIC_KEY_LENGTH + 1);		
 			System.arraycopy(clienthmac, 0, keyExReply, DH_PUBLIC_KEY_LENGTH + 1, AUTH_KEY_LENGTH);
-			ostream.write(keyExReply);
+			// The ciphers have what they need. No need to keep the keys
+			// around for the life of the connection.
+			keySet.forgetKeys();
 			
-			this.marshaler = new CommandMarshaler(keySet);
+			this.marshaler = new CommandMarshaler(keySet, this.bufferPool);
 			
 			Command authCmd = new Command(Command.CMD_AUTH, null);
 			authCmd.AppendParameter(service);
@@ -311,25 +402,10 @@ class ConnectionHandler {
 			authCmd.AppendParameter(this.credentialProvider.getToken(service, username));
 			
 			byte[] authData = marshaler.marshalCommand(authCmd, false);
-			ostream.write(authData);
-			
-			// reuse the authData as prefix
-			int prefixLen = marshaler.prefixLength();
-			n = readFull(istream, authData, prefixLen);
-			if (n != prefixLen) {
-				throw new LoginException("no enough data");
-			}
-			
-			n = marshaler.chunkSize(authData);
-			byte[] chunk = new byte[n];
-			int len = readFull(istream, chunk, n);
-			if (len != n) {
-				throw new LoginException("no enough data");
-			}
-			Command cmd = marshaler.unmarshalCommand(chunk);
-			if (cmd.getType() != Command.CMD_AUTHOK) {
-				throw new LoginException("bad server reply");
-			}
+			byte[] reply = new byte[keyExLen + authData.length];
+			System.arraycopy(keyExReply, 0, reply, 0, keyExLen);
+			System.arraycopy(authData, 0, reply, keyExLen, authData.length);
+			return reply;
 		} catch (NoSuchAlgorithmException e) {
 			throw new LoginException("cannot find the algorithm: " + e.getMessage());
 		} catch (NoSuchProviderException e) {
@@ -338,21 +414,79 @@ class ConnectionHandler {
 			throw new LoginException("invalid key: " + e.getMessage());
 		} catch (SignatureException e) {
 			throw new LoginException("bad signature: " + e.getMessage());
-		} catch (StreamCorruptedException e) {
-			throw new LoginException("hmac error: " + e.getMessage());
 		} catch (IOException e) {
 			throw new LoginException("io error: " + e.getMessage());
 		} catch (NoSuchPaddingException e) {
 			throw new LoginException("no such padding: " + e.getMessage());
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new LoginException("encryption error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Number of bytes before the size of the server's reply to the
+	 *         AUTH command is known.
+	 */
+	int authReplyPrefixLength() {
+		return this.marshaler.prefixLength();
+	}
+
+	int authReplyChunkSize(byte[] prefix, int offset) {
+		return this.marshaler.chunkSize(prefix, offset);
+	}
+
+	/**
+	 * Check the server's reply to the AUTH command. The connection is ready
+	 * to use if this method returns.
+	 */
+	void onAuthReply(byte[] chunk, int offset, int length) throws LoginException {
+		try {
+			Command cmd = marshaler.unmarshalCommand(chunk, offset, length);
+			if (cmd.getType() != Command.CMD_AUTHOK) {
+				throw new LoginException("bad server reply");
+			}
+		} catch (StreamCorruptedException e) {
+			throw new LoginException("hmac error: " + e.getMessage());
+		} catch (IOException e) {
+			throw new LoginException("io error: " + e.getMessage());
 		} catch (IllegalBlockSizeException e) {
 			throw new LoginException("encryption error: " + e.getMessage());
 		} catch (ShortBufferException e) {
 			throw new LoginException("encryption error: " + e.getMessage());
 		} catch (BadPaddingException e) {
 			throw new LoginException("encryption error: " + e.getMessage());
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new LoginException("encryption error: " + e.getMessage());
 		}
-		this.currentState = new ReadingChunkSizeState(this.handler, this.marshaler, service, service);
+		this.decoder = new FrameDecoder(this.handler, this.marshaler, this.registry,
+				this.service, this.username);
+	}
+
+	public void handshake(InputStream istream,
+			OutputStream ostream) throws LoginException {
+		byte[] data = new byte[serverHelloLength()];
+		int n = readFull(istream, data, data.length);
+		if (n != data.length) {
+			throw new LoginException("no enough data");
+		}
+
+		byte[] reply = onServerHello(data);
+		try {
+			ostream.write(reply);
+		} catch (IOException e) {
+			throw new LoginException("io error: " + e.getMessage());
+		}
+
+		byte[] prefix = new byte[authReplyPrefixLength()];
+		n = readFull(istream, prefix, prefix.length);
+		if (n != prefix.length) {
+			throw new LoginException("no enough data");
+		}
+		
+		n = authReplyChunkSize(prefix, 0);
+		byte[] chunk = new byte[n];
+		int len = readFull(istream, chunk, n);
+		if (len != n) {
+			throw new LoginException("no enough data");
+		}
+		onAuthReply(chunk, 0, n);
 	}
 }
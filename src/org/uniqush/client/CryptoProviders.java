@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.uniqush.rsa.RSASSAPSSVerifier;
+
+/**
+ * Chooses who provides the crypto of the connections: the AES-CTR
+ * ciphers and hmacs of every frame, and the check of the server's
+ * signature during the handshake.
+ *
+ * On server JVMs, the JDK providers use the AES and SHA instructions of
+ * the CPU and are much faster than BouncyCastle. Other platforms, such as
+ * Android, may lack some of the algorithms, which BouncyCastle provides
+ * once the application has registered it as "BC".
+ *
+ * The choice is global, like the providers themselves. It is made on the
+ * first connection and kept.
+ */
+public final class CryptoProviders {
+	/**
+	 * Use the JDK when it has the algorithms, and BouncyCastle for the
+	 * others. The default.
+	 */
+	public final static int AUTO = 0;
+
+	/**
+	 * Use the JDK providers only. The signature is checked by our own code
+	 * if the JDK cannot do it.
+	 */
+	public final static int JDK = 1;
+
+	/**
+	 * Use BouncyCastle, which must be registered as "BC". This is what
+	 * older versions did.
+	 */
+	public final static int BOUNCY_CASTLE = 2;
+
+	/**
+	 * Like AUTO, but if both the JDK and BouncyCastle have AES-CTR, measure
+	 * them on the first connection and take the faster one. This takes
+	 * about 200 ms once, and is for JVMs whose JIT may not know the AES
+	 * instructions.
+	 */
+	public final static int MEASURE = 3;
+
+	private final static String BC = "BC";
+	private final static String AES_CTR = "AES/CTR/NoPadding";
+	private final static String HMAC = "HmacSHA256";
+
+	// Size of the frames used to measure, and how many of them.
+	private final static int BENCHMARK_FRAME_SIZE = 1024;
+	private final static int BENCHMARK_FRAMES = 8;
+	// Rounds stop once the time is spent, but there are at least two.
+	// Less time than that is not enough for the JIT, and the result is
+	// then mostly noise.
+	private final static int BENCHMARK_ROUNDS = 10000;
+	private final static long BENCHMARK_NANOS = 200 * 1000 * 1000L;
+
+	private static int mode = AUTO;
+	// Where the ciphers come from. Null until the first connection.
+	private static Provider cipherProvider = null;
+
+	private CryptoProviders() {
+	}
+
+	/**
+	 * @param mode
+	 *            AUTO, JDK, BOUNCY_CASTLE or MEASURE. Connections made
+	 *            before keep what they have.
+	 */
+	public static synchronized void setMode(int mode) {
+		if (mode != AUTO && mode != JDK && mode != BOUNCY_CASTLE
+				&& mode != MEASURE) {
+			throw new IllegalArgumentException("unknown mode " + mode);
+		}
+		CryptoProviders.mode = mode;
+		cipherProvider = null;
+	}
+
+	public static synchronized int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The name of the provider of the ciphers. With MEASURE, this
+	 *         measures if no connection did yet.
+	 */
+	public static String getCipherProviderName()
+			throws NoSuchAlgorithmException {
+		return cipherProvider().getName();
+	}
+
+	private static synchronized Provider cipherProvider()
+			throws NoSuchAlgorithmException {
+		if (cipherProvider != null) {
+			return cipherProvider;
+		}
+		switch (mode) {
+		case JDK:
+			cipherProvider = jdkCipherProvider();
+			break;
+		case BOUNCY_CASTLE:
+			cipherProvider = bcProvider();
+			break;
+		case MEASURE:
+			cipherProvider = fasterCipherProvider();
+			break;
+		default:
+			try {
+				cipherProvider = jdkCipherProvider();
+			} catch (NoSuchAlgorithmException e) {
+				cipherProvider = bcProvider();
+			}
+		}
+		return cipherProvider;
+	}
+
+	private static Provider bcProvider() throws NoSuchAlgorithmException {
+		Provider bc = Security.getProvider(BC);
+		if (bc == null) {
+			throw new NoSuchAlgorithmException("BouncyCastle is not registered");
+		}
+		return bc;
+	}
+
+	// The first provider which is not BouncyCastle and has AES-CTR.
+	private static Provider jdkCipherProvider() throws NoSuchAlgorithmException {
+		Provider[] providers = Security.getProviders();
+		for (int i = 0; i < providers.length; i++) {
+			if (BC.equals(providers[i].getName())) {
+				continue;
+			}
+			try {
+				Cipher.getInstance(AES_CTR, providers[i]);
+				return providers[i];
+			} catch (NoSuchAlgorithmException e) {
+				continue;
+			} catch (NoSuchPaddingException e) {
+				continue;
+			}
+		}
+		throw new NoSuchAlgorithmException("no provider of " + AES_CTR
+				+ " besides BouncyCastle");
+	}
+
+	private static Provider fasterCipherProvider()
+			throws NoSuchAlgorithmException {
+		Provider bc = Security.getProvider(BC);
+		Provider jdk = null;
+		try {
+			jdk = jdkCipherProvider();
+		} catch (NoSuchAlgorithmException e) {
+			return bcProvider();
+		}
+		if (bc == null) {
+			return jdk;
+		}
+		try {
+			return benchmark(jdk, bc);
+		} catch (GeneralSecurityException e) {
+			return jdk;
+		}
+	}
+
+	/**
+	 * Encrypt the same frames with both, in turns, and keep the best time
+	 * of each. The first rounds give the JIT a chance to compile both.
+	 */
+	static Provider benchmark(Provider a, Provider b)
+			throws GeneralSecurityException {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		Cipher ca = newCipher(a, key);
+		Cipher cb = newCipher(b, key);
+		byte[] frame = new byte[BENCHMARK_FRAME_SIZE];
+		long bestA = Long.MAX_VALUE;
+		long bestB = Long.MAX_VALUE;
+		long deadline = System.nanoTime() + BENCHMARK_NANOS;
+		for (int i = 0; i < BENCHMARK_ROUNDS
+				&& (i < 2 || System.nanoTime() < deadline); i++) {
+			bestA = Math.min(bestA, time(ca, frame));
+			bestB = Math.min(bestB, time(cb, frame));
+		}
+		return bestB < bestA ? b : a;
+	}
+
+	private static long time(Cipher c, byte[] frame)
+			throws GeneralSecurityException {
+		long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+			c.update(frame, 0, frame.length, frame, 0);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static Cipher newCipher(Provider p, byte[] key)
+			throws GeneralSecurityException {
+		Cipher c = Cipher.getInstance(AES_CTR, p);
+		c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+				new IvParameterSpec(new byte[16]));
+		return c;
+	}
+
+	/**
+	 * @return An AES-CTR cipher, not initialized.
+	 */
+	static Cipher aesCtr() throws NoSuchAlgorithmException,
+			NoSuchPaddingException {
+		return Cipher.getInstance(AES_CTR, cipherProvider());
+	}
+
+	/**
+	 * @return An HmacSHA256, not initialized. It comes from the JDK when
+	 *         the ciphers do.
+	 */
+	static Mac hmacSha256() throws NoSuchAlgorithmException {
+		Provider p = cipherProvider();
+		if (BC.equals(p.getName())) {
+			return Mac.getInstance(HMAC);
+		}
+		try {
+			return Mac.getInstance(HMAC, p);
+		} catch (NoSuchAlgorithmException e) {
+			return Mac.getInstance(HMAC);
+		}
+	}
+
+	/**
+	 * @return A verifier of the RSA-PSS signatures of the server: SHA-256,
+	 *         MGF1 with SHA-256, and a salt as long as the hash.
+	 */
+	static Signature pssVerifier() throws NoSuchAlgorithmException,
+			InvalidAlgorithmParameterException {
+		int m = getMode();
+		if (m != BOUNCY_CASTLE) {
+			Signature sign = jdkPssVerifier();
+			if (sign != null) {
+				return sign;
+			}
+		}
+		if (m != JDK && Security.getProvider(BC) != null) {
+			try {
+				return Signature.getInstance("SHA256withRSA/PSS", BC);
+			} catch (NoSuchAlgorithmException e) {
+				// Fall through.
+			} catch (NoSuchProviderException e) {
+				// Unregistered since.
+			}
+		}
+		// If there is no SHA256withRSA/PSS, then we should use
+		// our own home brewed code.
+		// Yes, I'm talking about you, android.
+		return new RSASSAPSSVerifier("SHA256");
+	}
+
+	// JDK 11 and later, and some JDK 8 updates, have RSASSA-PSS.
+	private static Signature jdkPssVerifier() throws NoSuchAlgorithmException,
+			InvalidAlgorithmParameterException {
+		Provider[] providers = Security.getProviders();
+		for (int i = 0; i < providers.length; i++) {
+			if (BC.equals(providers[i].getName())
+					|| providers[i].getService("Signature", "RSASSA-PSS") == null) {
+				continue;
+			}
+			Signature sign = Signature.getInstance("RSASSA-PSS", providers[i]);
+			sign.setParameter(new PSSParameterSpec("SHA-256", "MGF1",
+					MGF1ParameterSpec.SHA256, 32, 1));
+			return sign;
+		}
+		return null;
+	}
+}
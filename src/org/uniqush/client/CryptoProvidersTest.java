@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.uniqush.rsa.RSASSAPSSVerifier;
+
+public class CryptoProvidersTest {
+
+	private static byte[] sealFrame() throws Exception {
+		byte[] key = new byte[256];
+		byte[] nonce = new byte[32];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (i * 3);
+		}
+		KeySet ks = new KeySet(key, nonce);
+		byte[] frame = new byte[64 + ks.getEncryptHmacSize()];
+		for (int i = 0; i < 64; i++) {
+			frame[i] = (byte) i;
+		}
+		ks.encryptInPlace(frame, 0, 64);
+		return frame;
+	}
+
+	@Test
+	public void testModes() throws Exception {
+		try {
+			CryptoProviders.setMode(CryptoProviders.JDK);
+			if ("BC".equals(CryptoProviders.getCipherProviderName())) {
+				fail("BouncyCastle used in JDK mode");
+			}
+			byte[] jdk = sealFrame();
+
+			CryptoProviders.setMode(CryptoProviders.BOUNCY_CASTLE);
+			assertEquals("BC", CryptoProviders.getCipherProviderName());
+			byte[] bc = sealFrame();
+			if (!Arrays.equals(jdk, bc)) {
+				fail("providers disagree");
+			}
+
+			CryptoProviders.setMode(CryptoProviders.AUTO);
+			if ("BC".equals(CryptoProviders.getCipherProviderName())) {
+				fail("the JDK should be preferred");
+			}
+
+			CryptoProviders.setMode(CryptoProviders.MEASURE);
+			if (!Arrays.equals(jdk, sealFrame())) {
+				fail("providers disagree");
+			}
+		} finally {
+			CryptoProviders.setMode(CryptoProviders.AUTO);
+		}
+	}
+
+	@Test
+	public void testPssVerifier() throws Exception {
+		KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+		gen.initialize(2048);
+		KeyPair pair = gen.generateKeyPair();
+		byte[] data = "the server's DH public key".getBytes("UTF-8");
+
+		// Signed the way the server does.
+		Signature signer = Signature.getInstance("RSASSA-PSS");
+		signer.setParameter(new PSSParameterSpec("SHA-256", "MGF1",
+				MGF1ParameterSpec.SHA256, 32, 1));
+		signer.initSign(pair.getPrivate());
+		signer.update(data);
+		byte[] sig = signer.sign();
+
+		Signature[] verifiers = new Signature[3];
+		try {
+			CryptoProviders.setMode(CryptoProviders.JDK);
+			verifiers[0] = CryptoProviders.pssVerifier();
+			CryptoProviders.setMode(CryptoProviders.BOUNCY_CASTLE);
+			verifiers[1] = CryptoProviders.pssVerifier();
+		} finally {
+			CryptoProviders.setMode(CryptoProviders.AUTO);
+		}
+		verifiers[2] = new RSASSAPSSVerifier("SHA256");
+		for (int i = 0; i < verifiers.length; i++) {
+			verifiers[i].initVerify(pair.getPublic());
+			verifiers[i].update(data);
+			if (!verifiers[i].verify(sig)) {
+				fail("verifier " + i + " rejected the signature");
+			}
+			sig[5] ^= 1;
+			verifiers[i].update(data);
+			if (verifiers[i].verify(sig)) {
+				fail("verifier " + i + " accepted a bad signature");
+			}
+			sig[5] ^= 1;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.Map;
+
+/**
+ * A message digest, from the server or from another user. See
+ * MessageHandler.onMessageDigestFromServer() for the meaning of the
+ * fields.
+ */
+public class Digest extends InboundEvent {
+	private boolean online;
+	private int size;
+	private Map<String, String> parameters;
+
+	Digest(int type, boolean online, String dstService, String dstUser,
+			String srcService, String srcUser, int size, String id,
+			Map<String, String> parameters) {
+		super(type, dstService, dstUser, srcService, srcUser, id);
+		this.online = online;
+		this.size = size;
+		this.parameters = parameters;
+	}
+
+	@Override
+	public void deliverTo(MessageHandler handler) {
+		if (this.getType() == DIGEST_FROM_USER) {
+			handler.onMessageDigestFromUser(this.online, this.getDstService(),
+					this.getDstUser(), this.getSrcService(), this.getSrcUser(),
+					this.size, this.getId(), this.parameters);
+		} else {
+			handler.onMessageDigestFromServer(this.online,
+					this.getDstService(), this.getDstUser(), this.size,
+					this.getId(), this.parameters);
+		}
+	}
+
+	/**
+	 * @return Whether the digest was sent over a live connection.
+	 */
+	public boolean isOnline() {
+		return this.online;
+	}
+
+	/**
+	 * @return Size of the referred message.
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	public Map<String, String> getParameters() {
+		return this.parameters;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the calls to a MessageHandler off the reader thread.
+ *
+ * Inbound events are put on a queue which is drained, one event at a
+ * time and in order, by a task running on the given executor. Once
+ * highWatermark events are waiting, the connection stops reading from
+ * the server; it starts again when the handler has brought the queue down
+ * to lowWatermark. A slow handler then slows the server down through TCP
+ * instead of stalling the reader.
+ *
+ * Usage:
+ *
+ * <pre>
+ * DispatchStage stage = new DispatchStage(myHandler, executor, 1024, 256);
+ * center.connect(address, port, service, username, stage);
+ * </pre>
+ */
+public class DispatchStage extends InboundStage {
+	private MessageHandler handler;
+	private Executor executor;
+	private int highWatermark;
+	private int lowWatermark;
+
+	private ConcurrentLinkedQueue<InboundEvent> queue;
+	private AtomicInteger depth;
+	private AtomicBoolean draining;
+	private Runnable drainTask;
+	// Set once the executor refused to drain us. Events are dropped from
+	// then on.
+	private volatile boolean failed;
+
+	// Whether we paused the reader. Changed under flowLock.
+	private volatile boolean paused;
+	private Object flowLock;
+
+	private AtomicInteger maxDepth;
+	private AtomicLong dispatched;
+	private AtomicLong totalWaitNanos;
+	private AtomicLong maxWaitNanos;
+	private AtomicLong pauses;
+
+	/**
+	 * @param handler
+	 *            Receives the events.
+	 * @param executor
+	 *            Where the handler is called. The handler is never called
+	 *            concurrently.
+	 * @param highWatermark
+	 *            Stop reading once this many events are waiting.
+	 * @param lowWatermark
+	 *            Read again once no more than this many events are waiting.
+	 */
+	public DispatchStage(MessageHandler handler, Executor executor,
+			int highWatermark, int lowWatermark) {
+		if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+			throw new IllegalArgumentException("need 0 <= lowWatermark < highWatermark");
+		}
+		this.handler = handler;
+		this.executor = executor;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.queue = new ConcurrentLinkedQueue<InboundEvent>();
+		this.depth = new AtomicInteger(0);
+		this.draining = new AtomicBoolean(false);
+		this.drainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		this.paused = false;
+		this.flowLock = new Object();
+		this.maxDepth = new AtomicInteger(0);
+		this.dispatched = new AtomicLong(0);
+		this.totalWaitNanos = new AtomicLong(0);
+		this.maxWaitNanos = new AtomicLong(0);
+		this.pauses = new AtomicLong(0);
+	}
+
+	public DispatchStage(MessageHandler handler, Executor executor) {
+		this(handler, executor, 1024, 256);
+	}
+
+	@Override
+	protected void enqueue(InboundEvent e) {
+		if (this.failed) {
+			skip(e);
+			return;
+		}
+		this.queue.add(e);
+		int d = this.depth.incrementAndGet();
+		int max = this.maxDepth.get();
+		while (d > max && !this.maxDepth.compareAndSet(max, d)) {
+			max = this.maxDepth.get();
+		}
+		if (d >= this.highWatermark) {
+			synchronized (this.flowLock) {
+				// The handler may have caught up in the meantime.
+				if (!this.paused && this.depth.get() >= this.highWatermark) {
+					this.paused = true;
+					this.pauses.incrementAndGet();
+					pauseReading();
+				}
+			}
+		}
+		if (this.draining.compareAndSet(false, true)) {
+			try {
+				this.executor.execute(this.drainTask);
+			} catch (RejectedExecutionException ex) {
+				fail(ex);
+			}
+		}
+	}
+
+	/**
+	 * Start draining again after an event held the lane.
+	 */
+	void resumeDrain() {
+		try {
+			this.executor.execute(this.drainTask);
+		} catch (RejectedExecutionException ex) {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Called when the executor is gone. No drain task is running, so the
+	 * handler can be told here.
+	 */
+	private void fail(RejectedExecutionException ex) {
+		this.failed = true;
+		synchronized (this.flowLock) {
+			// Nobody would resume the reader.
+			if (this.paused) {
+				this.paused = false;
+				resumeReading();
+			}
+		}
+		try {
+			this.handler.onError(ex);
+		} catch (RuntimeException e) {
+			// Nothing else to tell.
+		}
+		InboundEvent e = null;
+		while ((e = this.queue.poll()) != null) {
+			this.depth.decrementAndGet();
+			skip(e);
+		}
+		this.draining.set(false);
+	}
+
+	private void skip(InboundEvent e) {
+		try {
+			e.skipLane(this.handler);
+		} catch (RuntimeException ex) {
+			// Nothing else to tell.
+		}
+	}
+
+	private void drain() {
+		do {
+			InboundEvent e = null;
+			while ((e = this.queue.poll()) != null) {
+				int d = this.depth.decrementAndGet();
+				if (this.paused && d <= this.lowWatermark) {
+					synchronized (this.flowLock) {
+						if (this.paused && this.depth.get() <= this.lowWatermark) {
+							this.paused = false;
+							resumeReading();
+						}
+					}
+				}
+
+				long wait = System.nanoTime() - e.getReceivedAt();
+				this.totalWaitNanos.addAndGet(wait);
+				long max = this.maxWaitNanos.get();
+				while (wait > max && !this.maxWaitNanos.compareAndSet(max, wait)) {
+					max = this.maxWaitNanos.get();
+				}
+				this.dispatched.incrementAndGet();
+				if (e.holdsLane(this)) {
+					// draining stays set, so nobody else starts a drain
+					// until resumeDrain().
+					return;
+				}
+				try {
+					e.deliverTo(this.handler);
+				} catch (RuntimeException ex) {
+					// Do not let one bad event stop the queue, but let the
+					// handler know.
+					try {
+						this.handler.onError(ex);
+					} catch (RuntimeException ex2) {
+						// It failed on its own error.
+					}
+				}
+			}
+			this.draining.set(false);
+		} while (!this.queue.isEmpty() && this.draining.compareAndSet(false, true));
+	}
+
+	/**
+	 * @return Number of events waiting for the handler.
+	 */
+	public int getDepth() {
+		return this.depth.get();
+	}
+
+	/**
+	 * @return The largest number of events ever waiting at once.
+	 */
+	public int getMaxDepth() {
+		return this.maxDepth.get();
+	}
+
+	/**
+	 * @return Number of events handed to the handler.
+	 */
+	public long getDispatched() {
+		return this.dispatched.get();
+	}
+
+	/**
+	 * @return Average time an event waited in the queue, in nanoseconds.
+	 */
+	public long getAverageWaitNanos() {
+		long n = this.dispatched.get();
+		if (n == 0) {
+			return 0;
+		}
+		return this.totalWaitNanos.get() / n;
+	}
+
+	/**
+	 * @return Longest time an event waited in the queue, in nanoseconds.
+	 */
+	public long getMaxWaitNanos() {
+		return this.maxWaitNanos.get();
+	}
+
+	/**
+	 * @return How many times the reader was paused.
+	 */
+	public long getPauses() {
+		return this.pauses.get();
+	}
+
+	/**
+	 * @return Whether the executor refused to run the handler. The stage
+	 *         then drops its events, and the handler got the
+	 *         RejectedExecutionException through onError(). The close and
+	 *         error events of a {@link StripedDispatchStage} still count
+	 *         this lane as there.
+	 */
+	public boolean isFailed() {
+		return this.failed;
+	}
+
+	/**
+	 * @return Whether the reader is paused right now.
+	 */
+	public boolean isPaused() {
+		return this.paused;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+public class DispatchStageTest {
+
+	private static class RecordingHandler implements MessageHandler {
+		List<String> ids = new ArrayList<String>();
+		List<Exception> errors = new ArrayList<Exception>();
+		boolean closed = false;
+
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+			if (id.equals("bad")) {
+				throw new IllegalStateException("bad message");
+			}
+			ids.add(id);
+		}
+
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+			ids.add(srcUser + ":" + id);
+		}
+
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onMessageDigestFromUser(boolean online,
+				String dstService, String dstUser, String srcService,
+				String srcUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onCloseStart() {
+		}
+
+		public void onClosed() {
+			closed = true;
+		}
+
+		public void onError(Exception e) {
+			errors.add(e);
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingHandler h = new RecordingHandler();
+		DispatchStage stage = new DispatchStage(h, exec);
+		stage.onMessageFromServer("s", "u", "1", new Message());
+		stage.onMessageFromUser("s", "u", "s", "alice", "2", new Message());
+		stage.onClosed();
+		if (!h.ids.isEmpty()) {
+			fail("should not call the handler on the reader thread");
+		}
+		if (stage.getDepth() != 3) {
+			fail("bad depth: " + stage.getDepth());
+		}
+		exec.runAll();
+		if (h.ids.size() != 2 || !h.ids.get(0).equals("1")
+				|| !h.ids.get(1).equals("alice:2") || !h.closed) {
+			fail("bad delivery: " + h.ids);
+		}
+		if (stage.getDepth() != 0 || stage.getDispatched() != 3) {
+			fail("bad stats");
+		}
+	}
+
+	@Test
+	public void testWatermarks() {
+		ManualExecutor exec = new ManualExecutor();
+		DispatchStage stage = new DispatchStage(new RecordingHandler(), exec, 3, 1);
+		ReadGate gate = new ReadGate();
+		final int[] resumed = new int[1];
+		gate.setResumeListener(new Runnable() {
+			public void run() {
+				resumed[0]++;
+			}
+		});
+		stage.attach(gate);
+
+		stage.onMessageFromServer("s", "u", "1", new Message());
+		stage.onMessageFromServer("s", "u", "2", new Message());
+		if (gate.isPaused()) {
+			fail("paused too early");
+		}
+		stage.onMessageFromServer("s", "u", "3", new Message());
+		if (!gate.isPaused() || stage.getPauses() != 1) {
+			fail("should pause at the high watermark");
+		}
+		exec.runAll();
+		if (gate.isPaused() || resumed[0] != 1) {
+			fail("should resume at the low watermark");
+		}
+		if (stage.getMaxDepth() != 3) {
+			fail("bad max depth: " + stage.getMaxDepth());
+		}
+	}
+
+	@Test
+	public void testHandlerException() {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingHandler h = new RecordingHandler();
+		DispatchStage stage = new DispatchStage(h, exec);
+		stage.onMessageFromServer("s", "u", "bad", new Message());
+		stage.onMessageFromServer("s", "u", "2", new Message());
+		exec.runAll();
+		if (h.errors.size() != 1
+				|| !(h.errors.get(0) instanceof IllegalStateException)) {
+			fail("the handler should get its exception: " + h.errors);
+		}
+		if (h.ids.size() != 1 || !h.ids.get(0).equals("2")) {
+			fail("should go on after a bad event: " + h.ids);
+		}
+	}
+
+	@Test
+	public void testRejectedExecution() {
+		RecordingHandler h = new RecordingHandler();
+		DispatchStage stage = new DispatchStage(h, new Executor() {
+			public void execute(Runnable r) {
+				throw new RejectedExecutionException("shut down");
+			}
+		}, 2, 1);
+		ReadGate gate = new ReadGate();
+		stage.attach(gate);
+		stage.onMessageFromServer("s", "u", "1", new Message());
+		if (!stage.isFailed() || h.errors.size() != 1
+				|| !(h.errors.get(0) instanceof RejectedExecutionException)) {
+			fail("should fail the stage: " + h.errors);
+		}
+		stage.onMessageFromServer("s", "u", "2", new Message());
+		stage.onMessageFromServer("s", "u", "3", new Message());
+		if (stage.getDepth() != 0 || gate.isPaused() || h.errors.size() != 1) {
+			fail("a failed stage should drop its events");
+		}
+	}
+}
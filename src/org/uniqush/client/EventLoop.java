@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class EventLoop implements Runnable {
+	// Maximum number of buffers written by one gathering write.
+	private final static int MAX_GATHER = 64;
+	// How often the sessions are checked for idleness.
+	private final static long IDLE_CHECK_MILLIS = 1000;
+
+	private Selector selector;
+	private Queue<Runnable> tasks;
+	private Thread thread;
+	private volatile boolean running;
+
+	// Shared by the gathering writes of all the sessions. Only touched on
+	// the loop thread.
+	private ByteBuffer[] gather;
+	private long lastIdleCheck;
+
+	public EventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+		this.gather = new ByteBuffer[MAX_GATHER];
+		this.lastIdleCheck = System.nanoTime();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		this.thread.start();
+	}
+
+	Selector selector() {
+		return this.selector;
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * @return Scratch space for a gathering write. Only to be used on the
+	 *         loop thread, and cleared after use.
+	 */
+	ByteBuffer[] gatherBuffers() {
+		return this.gather;
+	}
+
+	/**
+	 * Run the task on the loop thread. Anything touching the selector or the
+	 * registered keys should go through here.
+	 */
+	void execute(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task = null;
+		while ((task = this.tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void checkIdle(long now) {
+		Iterator<SelectionKey> iter = this.selector.keys().iterator();
+		while (iter.hasNext()) {
+			SelectionKey key = iter.next();
+			if (key.isValid()) {
+				((NioSession) key.attachment()).checkIdle(now);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				this.selector.select(IDLE_CHECK_MILLIS);
+			} catch (IOException e) {
+				break;
+			}
+			runTasks();
+
+			Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				NioSession session = (NioSession) key.attachment();
+				try {
+					if (key.isValid() && key.isConnectable()) {
+						session.onConnectable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						session.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						session.onWritable();
+					}
+				} catch (CancelledKeyException e) {
+					session.close();
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now - this.lastIdleCheck >= IDLE_CHECK_MILLIS * 1000000L) {
+				this.lastIdleCheck = now;
+				checkIdle(now);
+			}
+		}
+
+		Iterator<SelectionKey> iter = this.selector.keys().iterator();
+		while (iter.hasNext()) {
+			NioSession session = (NioSession) iter.next().attachment();
+			session.close();
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			// Nothing we can do here.
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the frames of an established connection and hands the commands
+ * to the processors of the command registry.
+ *
+ * A frame is read in two chunks: the length prefix, then the rest. The
+ * decoder keeps which one it expects in a field, so one decoder serves the
+ * connection for its whole life without allocating anything per frame
+ * besides the decoded command.
+ *
+ * It can be driven in two ways: a reader which can produce exactly
+ * chunkSize() bytes calls onChunk(), and any other byte source calls
+ * feed() with whatever it got.
+ */
+class FrameDecoder implements CommandContext {
+	private final static int PHASE_SIZE = 0;
+	private final static int PHASE_CHUNK = 1;
+	private final static int PHASE_ERROR = 2;
+
+	private MessageHandler handler;
+	private CommandMarshaler marshaler;
+	private CommandRegistry registry;
+	private String service;
+	private String username;
+
+	private int phase;
+	// Size of the chunk after the prefix.
+	private int size;
+	// Set by the last chunk, if the connection should do something.
+	private Action action;
+	// Frames to send back to the server. Null unless there are some.
+	private List<byte[]> replies;
+
+	// A partial chunk given to feed().
+	private byte[] pending;
+	private int pendingLength;
+
+	public FrameDecoder(MessageHandler handler, CommandMarshaler marshaler,
+			CommandRegistry registry, String service, String username) {
+		this.handler = handler;
+		this.marshaler = marshaler;
+		this.registry = registry;
+		this.service = service;
+		this.username = username;
+		this.phase = PHASE_SIZE;
+		this.size = 0;
+		this.action = null;
+		this.replies = null;
+		this.pending = null;
+		this.pendingLength = 0;
+	}
+
+	/**
+	 * @return Number of bytes to give to the next onChunk() call, or a
+	 *         negative number if the connection is unusable.
+	 */
+	public int chunkSize() {
+		switch (this.phase) {
+		case PHASE_SIZE:
+			return this.marshaler.prefixLength();
+		case PHASE_CHUNK:
+			return this.size;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param data
+	 *            Holds the chunk, which is chunkSize() bytes long starting
+	 *            from offset. The buffer belongs to the caller and may be
+	 *            reused once the method returns.
+	 * @return What the connection should do, or null to just go on.
+	 */
+	public Action onChunk(byte[] data, int offset, int length) {
+		this.action = null;
+		try {
+			Command cmd = nextChunk(data, offset, length);
+			if (cmd != null) {
+				this.registry.process(cmd, this);
+			}
+		} catch (IOException e) {
+			this.fail(e);
+		} catch (GeneralSecurityException e) {
+			this.fail(e);
+		}
+		return this.action;
+	}
+
+	/**
+	 * @return The command if the chunk completed a frame, null otherwise.
+	 */
+	private Command nextChunk(byte[] data, int offset, int length)
+			throws IOException, GeneralSecurityException {
+		switch (this.phase) {
+		case PHASE_SIZE:
+			if (data == null || length != this.marshaler.prefixLength()) {
+				throw new StreamCorruptedException("No enough data");
+			}
+			this.size = this.marshaler.chunkSize(data, offset);
+			this.phase = PHASE_CHUNK;
+			return null;
+		case PHASE_CHUNK:
+			if (data == null || length != this.size) {
+				throw new StreamCorruptedException("No enough data");
+			}
+			this.phase = PHASE_SIZE;
+			return this.marshaler.unmarshalCommand(data, offset, length);
+		}
+		throw new StreamCorruptedException("the connection is unusable");
+	}
+
+	/**
+	 * Push-style decoding: take whatever bytes are available, however they
+	 * are cut, and decode the complete frames among them. The rest of a
+	 * partial frame is kept until the next call.
+	 *
+	 * The commands are only decoded, not processed. Pass them to dispatch()
+	 * for that.
+	 *
+	 * @param in
+	 *            Consumed entirely. Unless it is read-only, its bytes may
+	 *            be decrypted in place.
+	 * @param out
+	 *            Where to put the decoded commands.
+	 * @return Number of commands added to out.
+	 * @throws IOException
+	 *             If the stream is corrupted. The decoder is unusable
+	 *             afterwards.
+	 * @throws GeneralSecurityException
+	 *             If a frame cannot be decrypted.
+	 */
+	public int feed(ByteBuffer in, List<Command> out) throws IOException,
+			GeneralSecurityException {
+		int n = 0;
+		while (in.hasRemaining()) {
+			int len = chunkSize();
+			if (len < 0) {
+				throw new StreamCorruptedException("the connection is unusable");
+			}
+			Command cmd = null;
+			try {
+				if (this.pendingLength == 0 && in.hasArray() && in.remaining() >= len) {
+					// The whole chunk is there. Use it where it is.
+					int pos = in.position();
+					in.position(pos + len);
+					cmd = nextChunk(in.array(), in.arrayOffset() + pos, len);
+				} else if (this.pendingLength == 0 && this.phase == PHASE_CHUNK
+						&& !in.isReadOnly() && in.remaining() >= len) {
+					// Same for a direct buffer: only the plain text is
+					// copied out of it.
+					int limit = in.limit();
+					in.limit(in.position() + len);
+					this.phase = PHASE_SIZE;
+					cmd = this.marshaler.unmarshalCommand(in);
+					in.limit(limit);
+				} else {
+					if (this.pending == null || this.pending.length < len) {
+						byte[] bigger = new byte[Math.max(len, 1024)];
+						if (this.pending != null) {
+							System.arraycopy(this.pending, 0, bigger, 0, this.pendingLength);
+						}
+						this.pending = bigger;
+					}
+					int k = Math.min(len - this.pendingLength, in.remaining());
+					in.get(this.pending, this.pendingLength, k);
+					this.pendingLength += k;
+					if (this.pendingLength < len) {
+						break;
+					}
+					this.pendingLength = 0;
+					cmd = nextChunk(this.pending, 0, len);
+				}
+			} catch (IOException e) {
+				this.phase = PHASE_ERROR;
+				throw e;
+			} catch (GeneralSecurityException e) {
+				this.phase = PHASE_ERROR;
+				throw e;
+			}
+			if (cmd != null) {
+				out.add(cmd);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Forget the buffer of feed() if it holds nothing.
+	 */
+	void trim() {
+		if (this.pendingLength == 0) {
+			this.pending = null;
+		}
+	}
+
+	/**
+	 * Process a command returned by feed().
+	 *
+	 * @return What the connection should do, or null to just go on.
+	 */
+	public Action dispatch(Command cmd) {
+		this.action = null;
+		try {
+			this.registry.process(cmd, this);
+		} catch (IOException e) {
+			this.fail(e);
+		}
+		return this.action;
+	}
+
+	/**
+	 * @return The frames to send back to the server because of the last
+	 *         chunk, or null if there is none.
+	 */
+	public List<byte[]> takeReplies() {
+		List<byte[]> r = this.replies;
+		this.replies = null;
+		return r;
+	}
+
+	void reply(byte[] frame) {
+		if (this.replies == null) {
+			this.replies = new ArrayList<byte[]>(1);
+		}
+		this.replies.add(frame);
+	}
+
+	private void fail(Exception e) {
+		this.phase = PHASE_ERROR;
+		this.onError(e);
+	}
+
+	public String getService() {
+		return this.service;
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public MessageHandler getHandler() {
+		return this.handler;
+	}
+
+	public void close() {
+		this.action = new CloseAction();
+	}
+
+	public void redirect(String address) {
+		this.action = new ReconnectAction(address);
+	}
+
+	public void onError(Exception e) {
+		if (this.handler != null) {
+			this.handler.onError(e);
+		}
+	}
+
+	public void onCloseStart() {
+		if (this.handler != null) {
+			this.handler.onCloseStart();
+		}
+	}
+
+	public void onClosed() {
+		if (this.handler != null) {
+			this.handler.onClosed();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameDecoderTest {
+	private KeySet ks;
+	// The server's side of ks.
+	private Cipher serverCipher;
+	private Mac serverHmac;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] key = new byte[256];
+		byte[] nonce = new byte[32];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (i * 7);
+		}
+		for (int i = 0; i < nonce.length; i++) {
+			nonce[i] = (byte) i;
+		}
+		this.ks = new KeySet(key, nonce);
+		this.serverCipher = Cipher.getInstance("AES/CTR/NoPadding");
+		this.serverCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(
+				ks.serverEncrKey, "AES"), new IvParameterSpec(new byte[16]));
+		this.serverHmac = Mac.getInstance("HmacSHA256");
+		this.serverHmac.init(new SecretKeySpec(ks.serverAuthKey, "HmacSHA256"));
+	}
+
+	// Encode the frames the way the server would send them.
+	private byte[] serverFrames(int n) throws Exception {
+		CommandMarshaler marshaler = new CommandMarshaler(this.ks);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < n; i++) {
+			Message msg = new Message();
+			msg.put("k", "v" + i);
+			msg.put(("body" + i).getBytes());
+			Command cmd = new Command(Command.CMD_DATA, msg);
+			cmd.AppendParameter("id" + i);
+			byte[] frame = marshaler.encodeCommand(cmd, cmd.marshaledSize(), false);
+			int prefixSz = marshaler.prefixLength();
+			int len = marshaler.chunkSize(frame, 0) - ks.getDecryptHmacSize();
+			this.serverCipher.update(frame, prefixSz, len, frame, prefixSz);
+			this.serverHmac.reset();
+			this.serverHmac.update(frame, 0, prefixSz + len);
+			this.serverHmac.doFinal(frame, prefixSz + len);
+			out.write(frame);
+		}
+		return out.toByteArray();
+	}
+
+	private FrameDecoder newDecoder() {
+		return new FrameDecoder(null, new CommandMarshaler(this.ks),
+				new CommandRegistry(), "service", "user");
+	}
+
+	private void checkCommands(List<Command> cmds, int n) {
+		assertEquals(n, cmds.size());
+		for (int i = 0; i < n; i++) {
+			Command cmd = cmds.get(i);
+			if (cmd.getType() != Command.CMD_DATA) {
+				fail("wrong type: " + cmd.getType());
+			}
+			if (!("id" + i).equals(cmd.getParameter(0))) {
+				fail("wrong id: " + cmd.getParameter(0));
+			}
+			if (!("v" + i).equals(cmd.getMessage().get("k"))) {
+				fail("wrong header in command " + i);
+			}
+		}
+	}
+
+	@Test
+	public void testWholeFrames() throws Exception {
+		byte[] data = serverFrames(3);
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		ByteBuffer in = ByteBuffer.wrap(data);
+		assertEquals(3, decoder.feed(in, cmds));
+		assertFalse(in.hasRemaining());
+		checkCommands(cmds, 3);
+	}
+
+	@Test
+	public void testOneByteAtATime() throws Exception {
+		byte[] data = serverFrames(3);
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		for (int i = 0; i < data.length; i++) {
+			decoder.feed(ByteBuffer.wrap(data, i, 1), cmds);
+		}
+		checkCommands(cmds, 3);
+	}
+
+	@Test
+	public void testOddSlices() throws Exception {
+		byte[] data = serverFrames(5);
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		int off = 0;
+		int step = 1;
+		while (off < data.length) {
+			int n = Math.min(step, data.length - off);
+			// A slice of a bigger buffer, so the array offset is not zero.
+			ByteBuffer in = ByteBuffer.wrap(data, off, n).slice();
+			decoder.feed(in, cmds);
+			off += n;
+			step = step * 3 % 97 + 1;
+		}
+		checkCommands(cmds, 5);
+	}
+
+	@Test
+	public void testDirectBuffer() throws Exception {
+		byte[] data = serverFrames(4);
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+		// The first frame in one piece, the rest in two.
+		int[] cuts = { 0, 0, data.length / 2, data.length };
+		cuts[1] = 2 + (data[0] & 0xFF) + ((data[1] & 0xFF) << 8)
+				+ ks.getDecryptHmacSize();
+		for (int i = 1; i < cuts.length; i++) {
+			in.clear();
+			in.put(data, cuts[i - 1], cuts[i] - cuts[i - 1]);
+			in.flip();
+			decoder.feed(in, cmds);
+			assertFalse(in.hasRemaining());
+		}
+		checkCommands(cmds, 4);
+	}
+
+	@Test
+	public void testReadOnlyBuffer() throws Exception {
+		byte[] data = serverFrames(2);
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		ByteBuffer in = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		in.limit(data.length / 2);
+		decoder.feed(in, cmds);
+		in.limit(data.length);
+		decoder.feed(in, cmds);
+		checkCommands(cmds, 2);
+	}
+
+	@Test
+	public void testCorrupted() throws Exception {
+		byte[] data = serverFrames(2);
+		// Break the hmac of the first frame.
+		data[data.length / 2 - 1] ^= 1;
+		FrameDecoder decoder = newDecoder();
+		List<Command> cmds = new ArrayList<Command>();
+		try {
+			decoder.feed(ByteBuffer.wrap(data), cmds);
+			fail("corrupted frame accepted");
+		} catch (IOException e) {
+		}
+		assertTrue(decoder.chunkSize() < 0);
+		try {
+			decoder.feed(ByteBuffer.wrap(new byte[1]), cmds);
+			fail("unusable decoder accepted data");
+		} catch (IOException e) {
+		}
+	}
+}
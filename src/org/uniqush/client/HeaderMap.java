@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The headers of a message, kept in one flat array of keys and values.
+ *
+ * Messages usually have a handful of headers, for which a linear search
+ * is as fast as hashing and there is no node per entry. Lookups are
+ * linear in the number of headers, so it is not meant for big maps.
+ * Entries are kept in the order they were put.
+ */
+class HeaderMap extends AbstractMap<String, String> {
+	// Key i is at 2i, its value at 2i + 1.
+	private String[] kv;
+	private int size;
+
+	public HeaderMap() {
+		this(4);
+	}
+
+	public HeaderMap(int capacity) {
+		this.kv = new String[Math.max(capacity, 1) * 2];
+		this.size = 0;
+	}
+
+	public HeaderMap(Map<String, String> m) {
+		this(m.size());
+		Iterator<Entry<String, String>> iter = m.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<String, String> entry = iter.next();
+			// The keys of a map are already unique.
+			this.append(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private int indexOf(Object key) {
+		if (key == null) {
+			for (int i = 0; i < this.size; i++) {
+				if (this.kv[2 * i] == null) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		for (int i = 0; i < this.size; i++) {
+			String k = this.kv[2 * i];
+			// Decoded keys are often the same instance.
+			if (k == key || key.equals(k)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	String keyAt(int i) {
+		return this.kv[2 * i];
+	}
+
+	String valueAt(int i) {
+		return this.kv[2 * i + 1];
+	}
+
+	/**
+	 * Add an entry without looking for the key. The caller knows it is
+	 * not there.
+	 */
+	void append(String key, String value) {
+		if (2 * this.size == this.kv.length) {
+			String[] bigger = new String[this.kv.length * 2];
+			System.arraycopy(this.kv, 0, bigger, 0, this.kv.length);
+			this.kv = bigger;
+		}
+		this.kv[2 * this.size] = key;
+		this.kv[2 * this.size + 1] = value;
+		this.size++;
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		return this.kv[2 * i + 1];
+	}
+
+	@Override
+	public String put(String key, String value) {
+		int i = indexOf(key);
+		if (i >= 0) {
+			String old = this.kv[2 * i + 1];
+			this.kv[2 * i + 1] = value;
+			return old;
+		}
+		append(key, value);
+		return null;
+	}
+
+	private void removeAt(int i) {
+		int n = 2 * (this.size - i - 1);
+		System.arraycopy(this.kv, 2 * i + 2, this.kv, 2 * i, n);
+		this.size--;
+		this.kv[2 * this.size] = null;
+		this.kv[2 * this.size + 1] = null;
+	}
+
+	@Override
+	public String remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		String old = this.kv[2 * i + 1];
+		removeAt(i);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < 2 * this.size; i++) {
+			this.kv[i] = null;
+		}
+		this.size = 0;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Entry<String, String>> {
+		private int next = 0;
+		private int last = -1;
+
+		public boolean hasNext() {
+			return this.next < size;
+		}
+
+		public Entry<String, String> next() {
+			if (this.next >= size) {
+				throw new NoSuchElementException();
+			}
+			this.last = this.next++;
+			return new HeaderEntry(this.last);
+		}
+
+		public void remove() {
+			if (this.last < 0) {
+				throw new IllegalStateException();
+			}
+			removeAt(this.last);
+			this.next = this.last;
+			this.last = -1;
+		}
+	}
+
+	private class HeaderEntry implements Entry<String, String> {
+		private int i;
+
+		HeaderEntry(int i) {
+			this.i = i;
+		}
+
+		public String getKey() {
+			return kv[2 * this.i];
+		}
+
+		public String getValue() {
+			return kv[2 * this.i + 1];
+		}
+
+		public String setValue(String value) {
+			String old = kv[2 * this.i + 1];
+			kv[2 * this.i + 1] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<?, ?> e = (Entry<?, ?>) o;
+			return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			String k = getKey();
+			String v = getValue();
+			return (k == null ? 0 : k.hashCode()) ^ (v == null ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private static boolean eq(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
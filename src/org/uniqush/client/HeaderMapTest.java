@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+public class HeaderMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		HeaderMap m = new HeaderMap(1);
+		for (int i = 0; i < 10; i++) {
+			assertNull(m.put("k" + i, "v" + i));
+		}
+		assertEquals("v3", m.put("k3", "new"));
+		assertEquals(10, m.size());
+		assertEquals("new", m.get("k3"));
+		assertNull(m.get("k10"));
+
+		assertEquals("v0", m.remove("k0"));
+		assertNull(m.remove("k0"));
+		assertEquals(9, m.size());
+		if (!"k1".equals(m.keyAt(0)) || !"v9".equals(m.valueAt(8))) {
+			fail("entries should keep their order");
+		}
+	}
+
+	@Test
+	public void testSameAsHashMap() {
+		HashMap<String, String> expected = new HashMap<String, String>();
+		HeaderMap m = new HeaderMap();
+		for (int i = 0; i < 6; i++) {
+			expected.put("key" + i, "value" + i);
+			m.put("key" + i, "value" + i);
+		}
+		if (!m.equals(expected) || !expected.equals(m)) {
+			fail("should equal");
+		}
+		assertEquals(expected.hashCode(), m.hashCode());
+
+		Iterator<Entry<String, String>> iter = m.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<String, String> e = iter.next();
+			if (e.getKey().equals("key2")) {
+				iter.remove();
+			} else if (e.getKey().equals("key4")) {
+				e.setValue("changed");
+			}
+		}
+		expected.remove("key2");
+		expected.put("key4", "changed");
+		if (!m.equals(expected)) {
+			fail("bad iterator");
+		}
+
+		Map<String, String> copy = new HeaderMap(expected);
+		if (!copy.equals(expected)) {
+			fail("bad copy");
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.Map;
+
+/**
+ * One call to a {@link MessageHandler}, captured so that it can be queued
+ * and delivered later, possibly on another thread.
+ *
+ * Digests are {@link Digest}s.
+ */
+public class InboundEvent {
+	public final static int MESSAGE_FROM_SERVER = 0;
+	public final static int MESSAGE_FROM_USER = 1;
+	public final static int DIGEST_FROM_SERVER = 2;
+	public final static int DIGEST_FROM_USER = 3;
+	public final static int CLOSE_START = 4;
+	public final static int CLOSED = 5;
+	public final static int ERROR = 6;
+
+	private int type;
+	private String dstService;
+	private String dstUser;
+	private String srcService;
+	private String srcUser;
+	private String id;
+	private Message message;
+	private Exception error;
+
+	// When the event was received, in System.nanoTime().
+	private long receivedAt;
+
+	InboundEvent(int type) {
+		this.type = type;
+		this.receivedAt = System.nanoTime();
+	}
+
+	InboundEvent(int type, String dstService, String dstUser,
+			String srcService, String srcUser, String id) {
+		this(type);
+		this.dstService = dstService;
+		this.dstUser = dstUser;
+		this.srcService = srcService;
+		this.srcUser = srcUser;
+		this.id = id;
+	}
+
+	static InboundEvent messageFromServer(String dstService, String dstUser,
+			String id, Message msg) {
+		InboundEvent e = new InboundEvent(MESSAGE_FROM_SERVER);
+		e.dstService = dstService;
+		e.dstUser = dstUser;
+		e.id = id;
+		e.message = msg;
+		return e;
+	}
+
+	static InboundEvent messageFromUser(String dstService, String dstUser,
+			String srcService, String srcUser, String id, Message msg) {
+		InboundEvent e = new InboundEvent(MESSAGE_FROM_USER);
+		e.dstService = dstService;
+		e.dstUser = dstUser;
+		e.srcService = srcService;
+		e.srcUser = srcUser;
+		e.id = id;
+		e.message = msg;
+		return e;
+	}
+
+	static Digest digestFromServer(boolean online, String dstService,
+			String dstUser, int size, String id, Map<String, String> parameters) {
+		return new Digest(DIGEST_FROM_SERVER, online, dstService, dstUser,
+				null, null, size, id, parameters);
+	}
+
+	static Digest digestFromUser(boolean online, String dstService,
+			String dstUser, String srcService, String srcUser, int size,
+			String id, Map<String, String> parameters) {
+		return new Digest(DIGEST_FROM_USER, online, dstService, dstUser,
+				srcService, srcUser, size, id, parameters);
+	}
+
+	static InboundEvent error(Exception err) {
+		InboundEvent e = new InboundEvent(ERROR);
+		e.error = err;
+		return e;
+	}
+
+	/**
+	 * Called by a lane of a {@link DispatchStage} instead of deliverTo()
+	 * when the event reaches the head of its queue.
+	 * 
+	 * @return true if the lane should stop draining until
+	 *         lane.resumeDrain() is called. The event is then not
+	 *         delivered by this lane.
+	 */
+	boolean holdsLane(DispatchStage lane) {
+		return false;
+	}
+
+	/**
+	 * Called by a failed {@link DispatchStage} instead of queueing the
+	 * event. Events waiting for every lane count the failed one as there.
+	 */
+	void skipLane(MessageHandler handler) {
+	}
+
+	/**
+	 * Make the same call on the handler as the one captured.
+	 */
+	public void deliverTo(MessageHandler handler) {
+		switch (this.type) {
+		case MESSAGE_FROM_SERVER:
+			handler.onMessageFromServer(this.dstService, this.dstUser, this.id,
+					this.message);
+			break;
+		case MESSAGE_FROM_USER:
+			handler.onMessageFromUser(this.dstService, this.dstUser,
+					this.srcService, this.srcUser, this.id, this.message);
+			break;
+		case CLOSE_START:
+			handler.onCloseStart();
+			break;
+		case CLOSED:
+			handler.onClosed();
+			break;
+		case ERROR:
+			handler.onError(this.error);
+			break;
+		}
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public String getDstService() {
+		return this.dstService;
+	}
+
+	public String getDstUser() {
+		return this.dstUser;
+	}
+
+	/**
+	 * @return null unless the event came from another user.
+	 */
+	public String getSrcService() {
+		return this.srcService;
+	}
+
+	/**
+	 * @return null unless the event came from another user.
+	 */
+	public String getSrcUser() {
+		return this.srcUser;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return null unless it is a message.
+	 */
+	public Message getMessage() {
+		return this.message;
+	}
+
+	public Exception getError() {
+		return this.error;
+	}
+
+	/**
+	 * @return When the event was received, in System.nanoTime().
+	 */
+	public long getReceivedAt() {
+		return this.receivedAt;
+	}
+}
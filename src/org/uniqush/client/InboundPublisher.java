@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Flow.Publisher} of the messages, forwarded messages and digests
+ * received by a connection.
+ *
+ * Pass it to MessageCenter.connect() or connectAsync() as the message
+ * handler and subscribe to it. The subscriber's demand drives the reader:
+ * once prefetch events are buffered and not requested yet, the connection
+ * stops reading from the server until request() is called. The stream
+ * completes when the connection is closed and fails on the first error.
+ *
+ * There can only be one subscriber. Without an executor, onNext() is
+ * called either on the reader thread or on the thread calling request().
+ */
+public class InboundPublisher extends InboundStage implements
+		Flow.Publisher<InboundEvent> {
+	private int prefetch;
+	private Executor executor;
+
+	private ConcurrentLinkedQueue<InboundEvent> queue;
+	private AtomicInteger buffered;
+	private AtomicLong demand;
+	// Serializes the calls to the subscriber.
+	private AtomicInteger wip;
+	private Runnable drainTask;
+
+	private AtomicReference<Flow.Subscriber<? super InboundEvent>> subscriber;
+	private volatile boolean cancelled;
+	// CLOSED or ERROR, delivered after the buffered events.
+	private volatile InboundEvent terminal;
+	// Set by a bad request(), and delivered by drain() before anything
+	// else.
+	private volatile Throwable badRequest;
+	private boolean done;
+
+	// Whether we paused the reader. Changed under flowLock.
+	private volatile boolean paused;
+	private Object flowLock;
+
+	private class Subscription implements Flow.Subscription {
+		public void request(long n) {
+			if (n <= 0) {
+				// The subscriber is only called from drain(), one call at
+				// a time.
+				if (badRequest == null) {
+					badRequest = new IllegalArgumentException(
+							"request() needs a positive number");
+				}
+				signal();
+				return;
+			}
+			long d = 0;
+			long next = 0;
+			do {
+				d = demand.get();
+				next = d + n;
+				if (next < 0) {
+					// Long.MAX_VALUE means unbounded.
+					next = Long.MAX_VALUE;
+				}
+			} while (!demand.compareAndSet(d, next));
+			signal();
+		}
+
+		public void cancel() {
+			cancelSubscription();
+		}
+	}
+
+	private void cancelSubscription() {
+		this.cancelled = true;
+		InboundEvent e = null;
+		while ((e = this.queue.poll()) != null) {
+			this.buffered.decrementAndGet();
+		}
+		// Nobody is going to ask for more. Let the connection go on.
+		updateFlow();
+	}
+
+	/**
+	 * @param prefetch
+	 *            How many events may be buffered before the reader stops.
+	 * @param executor
+	 *            Where the subscriber is called. May be null.
+	 */
+	public InboundPublisher(int prefetch, Executor executor) {
+		if (prefetch <= 0) {
+			throw new IllegalArgumentException("prefetch should be positive");
+		}
+		this.prefetch = prefetch;
+		this.executor = executor;
+		this.queue = new ConcurrentLinkedQueue<InboundEvent>();
+		this.buffered = new AtomicInteger(0);
+		this.demand = new AtomicLong(0);
+		this.wip = new AtomicInteger(0);
+		this.drainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		this.subscriber = new AtomicReference<Flow.Subscriber<? super InboundEvent>>(null);
+		this.cancelled = false;
+		this.terminal = null;
+		this.done = false;
+		this.paused = false;
+		this.flowLock = new Object();
+	}
+
+	public InboundPublisher() {
+		this(16, null);
+	}
+
+	public void subscribe(Flow.Subscriber<? super InboundEvent> s) {
+		if (!this.subscriber.compareAndSet(null, s)) {
+			s.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			s.onError(new IllegalStateException("already subscribed"));
+			return;
+		}
+		s.onSubscribe(new Subscription());
+		signal();
+	}
+
+	@Override
+	protected void enqueue(InboundEvent e) {
+		switch (e.getType()) {
+		case InboundEvent.CLOSE_START:
+			return;
+		case InboundEvent.CLOSED:
+		case InboundEvent.ERROR:
+			if (this.terminal == null) {
+				this.terminal = e;
+			}
+			break;
+		default:
+			if (this.cancelled) {
+				return;
+			}
+			this.queue.add(e);
+			this.buffered.incrementAndGet();
+			break;
+		}
+		signal();
+		updateFlow();
+	}
+
+	private void signal() {
+		if (this.wip.getAndIncrement() != 0) {
+			// Whoever is draining will go around once more.
+			return;
+		}
+		if (this.executor == null) {
+			drain();
+		} else {
+			this.executor.execute(this.drainTask);
+		}
+	}
+
+	private void drain() {
+		int missed = 1;
+		do {
+			Flow.Subscriber<? super InboundEvent> s = this.subscriber.get();
+			Throwable err = this.badRequest;
+			if (s != null && !this.cancelled && !this.done && err != null) {
+				this.done = true;
+				cancelSubscription();
+				s.onError(err);
+			} else if (s != null && !this.cancelled && !this.done) {
+				while (this.demand.get() > 0) {
+					InboundEvent e = this.queue.poll();
+					if (e == null) {
+						break;
+					}
+					this.buffered.decrementAndGet();
+					if (this.demand.get() != Long.MAX_VALUE) {
+						this.demand.decrementAndGet();
+					}
+					s.onNext(e);
+				}
+				InboundEvent t = this.terminal;
+				if (t != null && this.queue.isEmpty() && !this.cancelled) {
+					this.done = true;
+					if (t.getType() == InboundEvent.ERROR) {
+						s.onError(t.getError());
+					} else {
+						s.onComplete();
+					}
+				}
+				updateFlow();
+			}
+			missed = this.wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Pause or resume the reader depending on how much is buffered.
+	 */
+	private void updateFlow() {
+		int b = this.buffered.get();
+		if (!this.paused && b >= this.prefetch && !this.cancelled) {
+			synchronized (this.flowLock) {
+				if (!this.paused && this.buffered.get() >= this.prefetch
+						&& !this.cancelled) {
+					this.paused = true;
+					pauseReading();
+				}
+			}
+		} else if (this.paused && (b < this.prefetch || this.cancelled)) {
+			synchronized (this.flowLock) {
+				if (this.paused
+						&& (this.buffered.get() < this.prefetch || this.cancelled)) {
+					this.paused = false;
+					resumeReading();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Number of events received but not requested yet.
+	 */
+	public int getBuffered() {
+		return this.buffered.get();
+	}
+
+	/**
+	 * @return Whether the reader is paused for lack of demand.
+	 */
+	public boolean isPaused() {
+		return this.paused;
+	}
+}
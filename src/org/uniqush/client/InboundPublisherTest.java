@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+public class InboundPublisherTest {
+
+	private static class RecordingSubscriber implements Flow.Subscriber<InboundEvent> {
+		Flow.Subscription subscription;
+		List<String> ids = new ArrayList<String>();
+		boolean completed = false;
+		Throwable error;
+
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+		}
+
+		public void onNext(InboundEvent e) {
+			ids.add(e.getId());
+		}
+
+		public void onError(Throwable t) {
+			error = t;
+		}
+
+		public void onComplete() {
+			completed = true;
+		}
+	}
+
+	@Test
+	public void testDemand() {
+		InboundPublisher pub = new InboundPublisher(2, null);
+		ReadGate gate = new ReadGate();
+		pub.attach(gate);
+		RecordingSubscriber sub = new RecordingSubscriber();
+		pub.subscribe(sub);
+		sub.subscription.request(2);
+
+		for (int i = 0; i < 4; i++) {
+			pub.onMessageFromServer("s", "u", "" + i, new Message());
+		}
+		if (sub.ids.size() != 2) {
+			fail("should deliver what was requested: " + sub.ids);
+		}
+		if (!gate.isPaused() || pub.getBuffered() != 2) {
+			fail("should stop reading without demand");
+		}
+
+		sub.subscription.request(10);
+		if (sub.ids.size() != 4 || !sub.ids.get(3).equals("3")) {
+			fail("should deliver the buffered events: " + sub.ids);
+		}
+		if (gate.isPaused()) {
+			fail("should read again");
+		}
+
+		pub.onClosed();
+		if (!sub.completed) {
+			fail("should complete when closed");
+		}
+	}
+
+	@Test
+	public void testErrorAfterBuffered() {
+		InboundPublisher pub = new InboundPublisher();
+		RecordingSubscriber sub = new RecordingSubscriber();
+		pub.onMessageFromServer("s", "u", "1", new Message());
+		pub.onError(new Exception("oops"));
+		pub.subscribe(sub);
+		if (sub.error != null) {
+			fail("buffered events go first");
+		}
+		sub.subscription.request(1);
+		if (sub.ids.size() != 1 || sub.error == null) {
+			fail("should fail after the buffered event");
+		}
+	}
+
+	@Test
+	public void testOneSubscriber() {
+		InboundPublisher pub = new InboundPublisher();
+		pub.subscribe(new RecordingSubscriber());
+		RecordingSubscriber second = new RecordingSubscriber();
+		pub.subscribe(second);
+		if (!(second.error instanceof IllegalStateException)) {
+			fail("should refuse a second subscriber");
+		}
+	}
+
+	@Test
+	public void testBadRequest() {
+		InboundPublisher pub = new InboundPublisher(2, null);
+		ReadGate gate = new ReadGate();
+		pub.attach(gate);
+		final List<String> calls = new ArrayList<String>();
+		RecordingSubscriber sub = new RecordingSubscriber() {
+			public void onNext(InboundEvent e) {
+				calls.add("next");
+				// Signals must not nest in onNext().
+				subscription.request(0);
+				calls.add("next done");
+			}
+
+			public void onError(Throwable t) {
+				calls.add("error");
+				super.onError(t);
+			}
+		};
+		pub.subscribe(sub);
+		for (int i = 0; i < 3; i++) {
+			pub.onMessageFromServer("s", "u", "" + i, new Message());
+		}
+		sub.subscription.request(1);
+		if (!calls.equals(Arrays.asList("next", "next done", "error"))) {
+			fail("bad calls: " + calls);
+		}
+		if (!(sub.error instanceof IllegalArgumentException)) {
+			fail("should fail with IllegalArgumentException: " + sub.error);
+		}
+		if (gate.isPaused() || pub.getBuffered() != 0) {
+			fail("should let the connection go on");
+		}
+		sub.subscription.request(0);
+		pub.onClosed();
+		if (calls.size() != 3 || sub.completed) {
+			fail("nothing after onError(): " + calls);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.Map;
+
+/**
+ * A MessageHandler which does not handle anything on the reader thread.
+ * Each callback is captured as an {@link InboundEvent} and handed to
+ * enqueue(), and the stage decides where and when it is handled.
+ *
+ * When the stage is passed to MessageCenter.connect() or connectAsync(),
+ * it can stop the connection from reading with pauseReading() until it
+ * calls resumeReading(). A stage serves one message center.
+ */
+public abstract class InboundStage implements MessageHandler {
+	private volatile ReadGate gate;
+
+	/**
+	 * Called on the reader thread (or the event loop) for each event, in
+	 * the order they arrived. Should not block.
+	 */
+	protected abstract void enqueue(InboundEvent e);
+
+	void attach(ReadGate gate) {
+		this.gate = gate;
+	}
+
+	/**
+	 * Called by the reader when it has handled everything it read and is
+	 * about to wait for the server again.
+	 */
+	void endOfBurst() {
+	}
+
+	/**
+	 * Stop reading from the server after the current command.
+	 */
+	protected void pauseReading() {
+		ReadGate g = this.gate;
+		if (g != null) {
+			g.pause();
+		}
+	}
+
+	/**
+	 * Undo pauseReading().
+	 */
+	protected void resumeReading() {
+		ReadGate g = this.gate;
+		if (g != null) {
+			g.resume();
+		}
+	}
+
+	public void onMessageFromServer(String dstService, String dstUser,
+			String id, Message msg) {
+		enqueue(InboundEvent.messageFromServer(dstService, dstUser, id, msg));
+	}
+
+	public void onMessageFromUser(String dstService, String dstUser,
+			String srcService, String srcUser, String id, Message msg) {
+		enqueue(InboundEvent.messageFromUser(dstService, dstUser, srcService,
+				srcUser, id, msg));
+	}
+
+	public void onMessageDigestFromServer(boolean online, String dstService,
+			String dstUser, int size, String id, Map<String, String> parameters) {
+		enqueue(InboundEvent.digestFromServer(online, dstService, dstUser,
+				size, id, parameters));
+	}
+
+	public void onMessageDigestFromUser(boolean online, String dstService,
+			String dstUser, String srcService, String srcUser, int size,
+			String id, Map<String, String> parameters) {
+		enqueue(InboundEvent.digestFromUser(online, dstService, dstUser,
+				srcService, srcUser, size, id, parameters));
+	}
+
+	public void onCloseStart() {
+		enqueue(new InboundEvent(InboundEvent.CLOSE_START));
+	}
+
+	public void onClosed() {
+		enqueue(new InboundEvent(InboundEvent.CLOSED));
+	}
+
+	public void onError(Exception e) {
+		enqueue(InboundEvent.error(e));
+	}
+}
@@ -18,12 +18,14 @@
 package org.uniqush.client;
 
 import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
@@ -37,8 +39,8 @@ import javax.crypto.spec.SecretKeySpec;
 import org.uniqush.rsa.MaskGenerationFunction;
 
 class KeySet {
-	private final int IV_LENGTH = 16;
-	private final Charset UTF_8 = Charset.forName("UTF-8");
+	private final static int IV_LENGTH = 16;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
 	public byte[] serverEncrKey;
 	public byte[] serverAuthKey;
 	public byte[] clientEncrKey;
@@ -50,6 +52,14 @@ class KeySet {
 	private Mac clientHmac;
 	private Mac serverHmac;
 
+	// Scratch space of decryption. Only used by the reader.
+	private byte[] decryptHmacBuf;
+	private byte[] decryptPrefixBuf;
+
+	// Scratch space of encryption. Only used by the writer.
+	private byte[] encryptHmacBuf;
+	private byte[] encryptPrefixBuf;
+
 	public int getEncryptHmacSize() {
 		return clientHmac.getMacLength();
 	}
@@ -66,33 +76,120 @@ class KeySet {
 		return decryptCipher.getOutputSize(length);
 	}
 	
+	/**
+	 * Compare in constant time, so that the time taken does not tell how
+	 * many bytes of a forged hmac were right.
+	 */
 	public boolean bytesEq(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int diff = 0;
+		for (int i = 0; i < length; i++) {
+			diff |= a[i + aOffset] ^ b[i + bOffset];
+		}
+		return diff == 0;
+	}
+
+	private static boolean bytesEq(byte[] a, ByteBuffer b, int bOffset, int length) {
+		int diff = 0;
 		for (int i = 0; i < length; i++) {
-			if (a[i + aOffset] != b[i + bOffset]) {
-				return false;
-			}
+			diff |= a[i] ^ b.get(i + bOffset);
 		}
-		return true;
+		return diff == 0;
+	}
+
+	private static void setPrefix(byte[] prefix, int length) {
+		prefix[0] = (byte)(length & 0xFF);
+		prefix[1] = (byte)((length >> 8) & 0xFF);
 	}
 	
 	public void decrypt(byte[] input, int inputOffset, byte[] output, int outputOffset) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException, StreamCorruptedException {
 		int hmacSz = getDecryptHmacSize();
-		int len = decryptCipher.update(input, inputOffset, input.length - inputOffset - hmacSz, output, outputOffset);
-		byte[] hmac = new byte[hmacSz];
-		serverHmac.reset();
-		
-		byte[] prefix = new byte[2];
 		int datalen = input.length - inputOffset - hmacSz;
-		prefix[0] = (byte)(datalen & 0xFF);
-		prefix[1] = (byte)((datalen >> 8) & 0xFF);
-		serverHmac.update(prefix);
-		serverHmac.update(input, inputOffset, getEncryptedSize(len));
+		if (datalen < 0) {
+			throw new StreamCorruptedException("no enough data");
+		}
+		byte[] hmac = this.decryptHmacBuf;
+		setPrefix(this.decryptPrefixBuf, datalen);
+		serverHmac.reset();
+		serverHmac.update(this.decryptPrefixBuf);
+		serverHmac.update(input, inputOffset, datalen);
 		serverHmac.doFinal(hmac, 0);
 		
-		if (!bytesEq(hmac, 0, input, inputOffset + getEncryptedSize(len), hmacSz)) {
+		if (!bytesEq(hmac, 0, input, inputOffset + datalen, hmacSz)) {
 			throw new StreamCorruptedException("unmached hmac");
 		}
-		return;
+		decryptCipher.update(input, inputOffset, datalen, output, outputOffset);
+	}
+	
+	/**
+	 * Verify and decrypt a chunk without allocating anything.
+	 * 
+	 * @param buf
+	 *            Holds the encrypted data followed by its hmac. The data is
+	 *            replaced by its plain text.
+	 * @param offset
+	 * @param length
+	 *            Length of the encrypted data plus the hmac.
+	 * @return Length of the plain text, which starts at offset.
+	 */
+	public int decryptInPlace(byte[] buf, int offset, int length) throws ShortBufferException, StreamCorruptedException {
+		int hmacSz = getDecryptHmacSize();
+		int datalen = length - hmacSz;
+		if (datalen < 0) {
+			throw new StreamCorruptedException("no enough data");
+		}
+		// The hmac is calculated on the cipher text, so we check it
+		// before the cipher text is gone.
+		setPrefix(this.decryptPrefixBuf, datalen);
+		serverHmac.reset();
+		serverHmac.update(this.decryptPrefixBuf);
+		serverHmac.update(buf, offset, datalen);
+		serverHmac.doFinal(this.decryptHmacBuf, 0);
+		if (!bytesEq(this.decryptHmacBuf, 0, buf, offset + datalen, hmacSz)) {
+			throw new StreamCorruptedException("unmached hmac");
+		}
+		return decryptCipher.update(buf, offset, datalen, buf, offset);
+	}
+
+	/**
+	 * Same as decryptInPlace(byte[], int, int), on the bytes between the
+	 * position and the limit of buf. Neither is changed.
+	 * 
+	 * Buffers with a backing array take the same way. Others, such as
+	 * direct buffers, are decrypted where they are too; the provider may
+	 * go through a scratch array of its own for them.
+	 * 
+	 * @return Length of the plain text, which starts at the position.
+	 */
+	public int decryptInPlace(ByteBuffer buf) throws ShortBufferException, StreamCorruptedException {
+		int pos = buf.position();
+		if (buf.hasArray()) {
+			return decryptInPlace(buf.array(), buf.arrayOffset() + pos, buf.remaining());
+		}
+		int hmacSz = getDecryptHmacSize();
+		int limit = buf.limit();
+		int datalen = buf.remaining() - hmacSz;
+		if (datalen < 0) {
+			throw new StreamCorruptedException("no enough data");
+		}
+		setPrefix(this.decryptPrefixBuf, datalen);
+		serverHmac.reset();
+		serverHmac.update(this.decryptPrefixBuf);
+		buf.limit(pos + datalen);
+		serverHmac.update(buf);
+		buf.limit(limit);
+		buf.position(pos);
+		serverHmac.doFinal(this.decryptHmacBuf, 0);
+		if (!bytesEq(this.decryptHmacBuf, buf, pos + datalen, hmacSz)) {
+			throw new StreamCorruptedException("unmached hmac");
+		}
+
+		// The cipher wants two buffers, even over the same bytes.
+		ByteBuffer out = buf.duplicate();
+		buf.limit(pos + datalen);
+		int len = decryptCipher.update(buf, out);
+		buf.limit(limit);
+		buf.position(pos);
+		return len;
 	}
 	
 	public void encrypt(byte[] input, int inputOffset, byte[] output, int outputOffset) throws IllegalBlockSizeException, ShortBufferException, BadPaddingException {
@@ -100,18 +197,89 @@ class KeySet {
 		int inputLen = input.length - inputOffset;
 		int len = encryptCipher.update(input, inputOffset, inputLen, output, outputOffset);
 		
-		byte[] prefix = new byte[2];
-		prefix[0] = (byte)(inputLen & 0xFF);
-		prefix[1] = (byte)((inputLen >> 8) & 0xFF);
+		setPrefix(this.encryptPrefixBuf, inputLen);
 		clientHmac.reset();
-		clientHmac.update(prefix);
+		clientHmac.update(this.encryptPrefixBuf);
 		clientHmac.update(output, outputOffset, len);
 		clientHmac.doFinal(output, outputOffset + len);
 	}
 	
+	/**
+	 * Encrypt the data in place and append its hmac.
+	 * 
+	 * @param buf
+	 *            Holds the plain text, followed by getEncryptHmacSize()
+	 *            bytes of room for the hmac.
+	 * @param offset
+	 * @param length
+	 *            Length of the plain text.
+	 */
+	public void encryptInPlace(byte[] buf, int offset, int length) throws ShortBufferException {
+		// encrypt-then-hmac
+		int len = encryptCipher.update(buf, offset, length, buf, offset);
+		setPrefix(this.encryptPrefixBuf, length);
+		clientHmac.reset();
+		clientHmac.update(this.encryptPrefixBuf);
+		clientHmac.update(buf, offset, len);
+		clientHmac.doFinal(buf, offset + len);
+	}
+
+	/**
+	 * Same as encryptInPlace(byte[], int, int), on the bytes between the
+	 * position and the limit of buf: the plain text followed by
+	 * getEncryptHmacSize() bytes of room for the hmac. Neither the
+	 * position nor the limit is changed.
+	 */
+	public void encryptInPlace(ByteBuffer buf) throws ShortBufferException {
+		int hmacSz = getEncryptHmacSize();
+		int pos = buf.position();
+		int length = buf.remaining() - hmacSz;
+		if (length < 0) {
+			throw new ShortBufferException("no room for the hmac");
+		}
+		if (buf.hasArray()) {
+			encryptInPlace(buf.array(), buf.arrayOffset() + pos, length);
+			return;
+		}
+		int limit = buf.limit();
+		ByteBuffer out = buf.duplicate();
+		buf.limit(pos + length);
+		int len = encryptCipher.update(buf, out);
+		setPrefix(this.encryptPrefixBuf, length);
+		clientHmac.reset();
+		clientHmac.update(this.encryptPrefixBuf);
+		buf.position(pos);
+		buf.limit(pos + len);
+		clientHmac.update(buf);
+		buf.limit(limit);
+		clientHmac.doFinal(this.encryptHmacBuf, 0);
+		buf.put(this.encryptHmacBuf);
+		buf.position(pos);
+	}
+	
+	/**
+	 * Wipe the raw keys. The ciphers and the macs keep working, but
+	 * clientHmac() cannot be used any more.
+	 */
+	public void forgetKeys() {
+		wipe(this.serverEncrKey);
+		wipe(this.serverAuthKey);
+		wipe(this.clientEncrKey);
+		wipe(this.clientAuthKey);
+		this.serverEncrKey = null;
+		this.serverAuthKey = null;
+		this.clientEncrKey = null;
+		this.clientAuthKey = null;
+	}
+
+	private static void wipe(byte[] key) {
+		if (key != null) {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
 	public byte[] clientHmac(byte[] data, int offset, int length) throws InvalidKeyException, NoSuchAlgorithmException {
-		Mac h = null;
-		h = Mac.getInstance("HmacSHA256");
+		Mac h = CryptoProviders.hmacSha256();
 		SecretKey hmacKey = new SecretKeySpec(clientAuthKey, h.getAlgorithm());
 		h.init(hmacKey);
 		h.update(data, offset, length);
@@ -140,8 +308,8 @@ class KeySet {
 		h.reset();
 		
 
-		this.encryptCipher = Cipher.getInstance("AES/CTR/NoPadding", "BC");
-		this.decryptCipher = Cipher.getInstance("AES/CTR/NoPadding", "BC");
+		this.encryptCipher = CryptoProviders.aesCtr();
+		this.decryptCipher = CryptoProviders.aesCtr();
 		
 		byte[] iv = new byte[IV_LENGTH];
 		for (int i = 0; i < iv.length; i++) {
@@ -157,13 +325,18 @@ class KeySet {
 		this.decryptCipher.init(Cipher.DECRYPT_MODE, srvk, ivspec);
 		
 
-		this.clientHmac = Mac.getInstance("HmacSHA256");
+		this.clientHmac = CryptoProviders.hmacSha256();
 		SecretKey cliAuthK = new SecretKeySpec(clientAuthKey, this.clientHmac.getAlgorithm());
 		clientHmac.init(cliAuthK);
 		
 
-		this.serverHmac = Mac.getInstance("HmacSHA256");
+		this.serverHmac = CryptoProviders.hmacSha256();
 		SecretKey srvAuthK = new SecretKeySpec(serverAuthKey, this.serverHmac.getAlgorithm());
 		serverHmac.init(srvAuthK);
+
+		this.decryptHmacBuf = new byte[this.serverHmac.getMacLength()];
+		this.decryptPrefixBuf = new byte[2];
+		this.encryptHmacBuf = new byte[this.clientHmac.getMacLength()];
+		this.encryptPrefixBuf = new byte[2];
 	}
 }
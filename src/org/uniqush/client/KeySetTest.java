@@ -19,13 +19,19 @@ package org.uniqush.client;
 
 import static org.junit.Assert.*;
 
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.Arrays;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Test;
 
@@ -73,4 +79,85 @@ public class KeySetTest {
 		}
 	}
 
+	private static KeySet newKeySet() throws Exception {
+		byte[] key = new byte[256];
+		byte[] nonce = new byte[32];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte) (i * 7);
+		}
+		return new KeySet(key, nonce);
+	}
+
+	private static ByteBuffer direct(byte[] data, int offset) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(offset + data.length);
+		buf.position(offset);
+		buf.put(data);
+		buf.position(offset);
+		return buf;
+	}
+
+	@Test
+	public void testByteBuffers() throws Exception {
+		KeySet a = newKeySet();
+		KeySet b = newKeySet();
+		int hmacSz = a.getEncryptHmacSize();
+
+		// Frames are padded to whole blocks. Twice, as the counter goes on
+		// from one frame to the next.
+		for (int round = 0; round < 2; round++) {
+			byte[] frame = new byte[96 + hmacSz];
+			for (int i = 0; i < 96; i++) {
+				frame[i] = (byte) (i + round);
+			}
+			ByteBuffer buf = direct(frame, 8);
+			a.encryptInPlace(frame, 0, 96);
+			b.encryptInPlace(buf);
+			assertEquals(8, buf.position());
+			byte[] sealed = new byte[frame.length];
+			buf.get(sealed);
+			if (!Arrays.equals(frame, sealed)) {
+				fail("direct buffer encrypted differently");
+			}
+		}
+
+		// What the server sends.
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(a.serverEncrKey,
+				"AES"), new IvParameterSpec(new byte[16]));
+		Mac hmac = Mac.getInstance("HmacSHA256");
+		hmac.init(new SecretKeySpec(a.serverAuthKey, "HmacSHA256"));
+		for (int round = 0; round < 3; round++) {
+			byte[] frame = new byte[2 + 64 + hmacSz];
+			frame[0] = 64;
+			for (int i = 0; i < 64; i++) {
+				frame[2 + i] = (byte) (i * round);
+			}
+			cipher.update(frame, 2, 64, frame, 2);
+			hmac.update(frame, 0, 2 + 64);
+			hmac.doFinal(frame, 2 + 64);
+			if (round == 2) {
+				frame[frame.length - 1] ^= 1;
+			}
+
+			ByteBuffer buf = direct(frame, 0);
+			buf.position(2);
+			try {
+				assertEquals(64, b.decryptInPlace(buf));
+				if (round == 2) {
+					fail("bad hmac accepted");
+				}
+			} catch (StreamCorruptedException e) {
+				if (round != 2) {
+					throw e;
+				}
+				continue;
+			}
+			assertEquals(64, a.decryptInPlace(frame, 2, frame.length - 2));
+			assertEquals(2, buf.position());
+			for (int i = 0; i < 64; i++) {
+				assertEquals((byte) (i * round), buf.get(2 + i));
+				assertEquals((byte) (i * round), frame[2 + i]);
+			}
+		}
+	}
 }
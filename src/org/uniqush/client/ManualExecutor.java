@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor for the tests, which runs its tasks only when asked to.
+ * Tasks may be added from other threads, such as timers.
+ */
+class ManualExecutor implements Executor {
+	private List<Runnable> tasks = new ArrayList<Runnable>();
+
+	public synchronized void execute(Runnable r) {
+		tasks.add(r);
+	}
+
+	synchronized int pending() {
+		return tasks.size();
+	}
+
+	private synchronized Runnable next() {
+		if (tasks.isEmpty()) {
+			return null;
+		}
+		return tasks.remove(0);
+	}
+
+	void runAll() {
+		Runnable r = null;
+		while ((r = next()) != null) {
+			r.run();
+		}
+	}
+}
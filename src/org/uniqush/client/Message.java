@@ -17,61 +17,339 @@
 
 package org.uniqush.client;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+/**
+ * A message: some headers and a body.
+ *
+ * A message received from the server is decoded lazily. Its headers and
+ * body stay in the bytes of the command until they are asked for, and
+ * get() only decodes the value it is asked for.
+ */
 public class Message implements Serializable {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
-	private HashMap<String, String> header;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	// The serialized form has a HashMap, as it always had.
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("header", HashMap.class),
+			new ObjectStreamField("body", byte[].class) };
+
+	private HeaderMap header;
 	private byte[] body;
 
+	// The undecoded form of a received message. Null once both the
+	// headers and the body are decoded. Guarded by this.
+	private transient byte[] raw;
+	private transient boolean headerPending;
+	private transient boolean bodyPending;
+	private transient int rawHeaderOffset;
+	// Where the last header ends, or -1 if it is not terminated.
+	private transient int rawHeaderEnd;
+	private transient int rawNrHeaders;
+	private transient int rawBodyOffset;
+	private transient int rawBodyLength;
+	// Where the header keys come from. May be null.
+	private transient StringTable names;
+
 	public Message() {
-		this.header = new HashMap<String, String>();
+		this.header = new HeaderMap();
 	}
 
 	public Message(Map<String, String> header, byte[] body) {
 		if (header != null) {
-			Iterator<Entry<String, String>> iter = header.entrySet().iterator();
-			this.header = new HashMap<String, String>(header.size());
+			this.header = new HeaderMap(header);
+		}
+		this.body = body;
+	}
 
-			while (iter.hasNext()) {
-				Entry<String, String> entry = iter.next();
-				this.header.put(entry.getKey(), entry.getValue());
+	/**
+	 * Take the header map as it is. Used by the decoder.
+	 */
+	Message(HeaderMap header, byte[] body) {
+		this.header = header;
+		this.body = body;
+	}
+
+	/**
+	 * A message still in the bytes of a command.
+	 *
+	 * @param raw
+	 *            Should not be changed afterwards.
+	 * @param headerOffset
+	 *            Where the nrHeaders key/value pairs start. Each key and
+	 *            value is terminated by a zero.
+	 * @param headerEnd
+	 *            Where the pairs end, or -1 if the last value runs to the
+	 *            end of the command.
+	 * @param names
+	 *            Where to look up the header keys. May be null.
+	 */
+	Message(byte[] raw, int headerOffset, int headerEnd, int nrHeaders,
+			int bodyOffset, int bodyLength, StringTable names) {
+		this.raw = raw;
+		this.names = names;
+		this.rawHeaderOffset = headerOffset;
+		this.rawHeaderEnd = headerEnd;
+		this.rawNrHeaders = nrHeaders;
+		this.rawBodyOffset = bodyOffset;
+		this.rawBodyLength = bodyLength;
+		this.headerPending = nrHeaders > 0;
+		this.bodyPending = bodyLength > 0;
+		if (!this.headerPending && !this.bodyPending) {
+			this.raw = null;
+		}
+	}
+
+	private static int cutString(byte[] data, int start) {
+		while (data[start] != 0) {
+			start++;
+		}
+		return start;
+	}
+
+	private synchronized void decodeHeader() {
+		if (!this.headerPending) {
+			return;
+		}
+		byte[] data = this.raw;
+		int limit = this.rawBodyOffset + this.rawBodyLength;
+		HeaderMap h = new HeaderMap(this.rawNrHeaders);
+		int start = this.rawHeaderOffset;
+		for (int i = 0; i < this.rawNrHeaders; i++) {
+			int end = cutString(data, start);
+			String key = null;
+			if (this.names != null) {
+				key = this.names.get(data, start, end - start);
+			} else {
+				key = new String(data, start, end - start, UTF_8);
+			}
+			start = end + 1;
+			if (i == this.rawNrHeaders - 1 && this.rawHeaderEnd < 0) {
+				end = limit;
+			} else {
+				end = cutString(data, start);
 			}
+			h.put(key, new String(data, start, end - start, UTF_8));
+			start = end + 1;
 		}
-		this.body = body;
+		this.header = h;
+		this.headerPending = false;
+		this.names = null;
+		if (!this.bodyPending) {
+			this.raw = null;
+		}
+	}
+
+	private synchronized void decodeBody() {
+		if (!this.bodyPending) {
+			return;
+		}
+		byte[] b = new byte[this.rawBodyLength];
+		System.arraycopy(this.raw, this.rawBodyOffset, b, 0, b.length);
+		this.body = b;
+		this.bodyPending = false;
+		if (!this.headerPending) {
+			this.raw = null;
+		}
+	}
+
+	/**
+	 * @return Whether the bytes of data from offset to the next zero (or
+	 *         limit) are the same as the ASCII string s.
+	 */
+	private static boolean asciiEquals(byte[] data, int offset, int limit, String s) {
+		int n = s.length();
+		if (limit - offset < n) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			if (data[offset + i] != (byte) s.charAt(i)) {
+				return false;
+			}
+		}
+		return offset + n == limit || data[offset + n] == 0;
+	}
+
+	private static boolean isAscii(String s) {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			if (s.charAt(i) >= 0x80 || s.charAt(i) == 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public Map<String, String> getHeader() {
+		decodeHeader();
+		return this.header;
+	}
+
+	HeaderMap headerMap() {
+		decodeHeader();
 		return this.header;
 	}
 
 	public String get(String key) {
+		synchronized (this) {
+			if (this.headerPending && isAscii(key)) {
+				// Look for the key without decoding the others.
+				byte[] data = this.raw;
+				int limit = this.rawBodyOffset + this.rawBodyLength;
+				int start = this.rawHeaderOffset;
+				String value = null;
+				for (int i = 0; i < this.rawNrHeaders; i++) {
+					boolean found = asciiEquals(data, start, limit, key);
+					start = cutString(data, start) + 1;
+					int end;
+					if (i == this.rawNrHeaders - 1 && this.rawHeaderEnd < 0) {
+						end = limit;
+					} else {
+						end = cutString(data, start);
+					}
+					if (found) {
+						// Later ones win, like they do in the map.
+						value = new String(data, start, end - start, UTF_8);
+					}
+					start = end + 1;
+				}
+				return value;
+			}
+		}
+		decodeHeader();
 		return this.header.get(key);
 	}
 
 	public void put(String key, String value) {
+		decodeHeader();
 		if (this.header == null) {
-			this.header = new HashMap<String, String>(3);
+			this.header = new HeaderMap(3);
 		}
 		this.header.put(key, value);
 	}
 
 	public void put(byte[] body) {
+		synchronized (this) {
+			this.bodyPending = false;
+			if (!this.headerPending) {
+				this.raw = null;
+			}
+		}
 		this.body = body;
 	}
 
 	public byte[] getBody() {
+		decodeBody();
 		return this.body;
 	}
 
+	/**
+	 * @return The body as a read-only buffer, or null if there is no body.
+	 *         Unlike getBody(), it does not copy the body of a received
+	 *         message.
+	 */
+	public ByteBuffer getBodyBuffer() {
+		synchronized (this) {
+			if (this.bodyPending) {
+				return ByteBuffer.wrap(this.raw, this.rawBodyOffset,
+						this.rawBodyLength).slice().asReadOnlyBuffer();
+			}
+		}
+		if (this.body == null) {
+			return null;
+		}
+		return ByteBuffer.wrap(this.body).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return Number of bytes of the body.
+	 */
+	public synchronized int getBodyLength() {
+		if (this.bodyPending) {
+			return this.rawBodyLength;
+		}
+		if (this.body == null) {
+			return 0;
+		}
+		return this.body.length;
+	}
+
+	/**
+	 * Copy the body into buf without decoding it.
+	 */
+	synchronized void copyBodyTo(byte[] buf, int offset) {
+		if (this.bodyPending) {
+			System.arraycopy(this.raw, this.rawBodyOffset, buf, offset, this.rawBodyLength);
+		} else if (this.body != null) {
+			System.arraycopy(this.body, 0, buf, offset, this.body.length);
+		}
+	}
+
+	/**
+	 * @return Length of the undecoded headers, which can be copied as they
+	 *         are by copyRawHeaderTo(), or -1 if they are decoded.
+	 */
+	synchronized int rawHeaderLength() {
+		if (!this.headerPending || this.rawHeaderEnd < 0) {
+			return -1;
+		}
+		return this.rawHeaderEnd - this.rawHeaderOffset;
+	}
+
+	synchronized int rawNrHeaders() {
+		return this.rawNrHeaders;
+	}
+
+	synchronized void copyRawHeaderTo(byte[] buf, int offset) {
+		System.arraycopy(this.raw, this.rawHeaderOffset, buf, offset,
+				this.rawHeaderEnd - this.rawHeaderOffset);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		decodeHeader();
+		decodeBody();
+		ObjectOutputStream.PutField fields = out.putFields();
+		HashMap<String, String> h = null;
+		if (this.header != null) {
+			h = new HashMap<String, String>(this.header);
+		}
+		fields.put("header", h);
+		fields.put("body", this.body);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Map<String, String> h = (Map<String, String>) fields.get("header", null);
+		if (h != null) {
+			this.header = new HeaderMap(h);
+		}
+		this.body = (byte[]) fields.get("body", null);
+	}
+
 	public boolean isEmpty() {
+		synchronized (this) {
+			if (this.headerPending || this.bodyPending) {
+				// Only non-empty parts are pending.
+				return false;
+			}
+		}
 		if (this.header != null) {
 			if (this.header.size() > 0) {
 				return false;
@@ -86,6 +364,10 @@ public class Message implements Serializable {
 	}
 
 	public boolean equals(Message msg) {
+		this.decodeHeader();
+		this.decodeBody();
+		msg.decodeHeader();
+		msg.decodeBody();
 		if (msg.header == null && this.header != null) {
 			return false;
 		} else if (msg.header != null && this.header == null) {
@@ -20,20 +20,33 @@ package org.uniqush.client;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
 import javax.security.auth.login.LoginException;
 
+import org.uniqush.diffiehellman.DHGroup;
+import org.uniqush.diffiehellman.DHKeyPool;
+
 public class MessageCenter implements Runnable {
 
 	private CredentialProvider credentialProvider;
@@ -41,47 +54,588 @@ public class MessageCenter implements Runnable {
 	// serverSocket and currentConnHandlerId are guarded by sockLock
 	private Socket serverSocket;
 	private int currentConnHandlerId;
-	private Lock sockLock;
+	private ReentrantLock sockLock;
 
 	private ConnectionHandler handler;
-	private ReadWriteLock connHandlerLock;
+	private ReentrantReadWriteLock connHandlerLock;
+
+	// Whether we have been connected. Blocking senders wait while it is
+	// STATE_NEW. Changed under stateLock.
+	private volatile int state;
+	private ReentrantLock stateLock;
+	private Condition stateChanged;
+	private final static int STATE_NEW = 0;
+	private final static int STATE_CONNECTED = 1;
+	private final static int STATE_CLOSED = 2;
+
+	// Non-null if the connection is driven by an event loop
+	// instead of the thread calling run().
+	private NioEngine engine;
+	private NioSession session;
+
+	// The session still doing its handshake, if any.
+	// Guarded by sessionLock.
+	private NioSession connecting;
+
+	// Serializes connect(), stop() and the switching of sessions. A lock
+	// instead of a monitor, because connect() does the handshake while
+	// holding it and a virtual thread blocked in a monitor would pin its
+	// carrier thread.
+	private ReentrantLock sessionLock;
+
+	private BufferPool bufferPool;
+
+	// Lets an InboundStage stop us from reading.
+	private ReadGate readGate;
+	// The message handler, if it is an InboundStage.
+	private volatile InboundStage stage;
+	// Maximum number of messages given to a BatchMessageHandler at once.
+	private final static int MAX_BATCH = 1024;
+
+	/**
+	 * When the send queue is full, wait for room.
+	 */
+	public final static int QUEUE_FULL_BLOCK = OutboundQueue.POLICY_BLOCK;
+	/**
+	 * When the send queue is full, fail the new command.
+	 */
+	public final static int QUEUE_FULL_FAIL = OutboundQueue.POLICY_FAIL;
+	/**
+	 * When the send queue is full, fail the oldest queued command.
+	 */
+	public final static int QUEUE_FULL_DROP_OLDEST = OutboundQueue.POLICY_DROP_OLDEST;
+
+	// Created on the first asynchronous send. Guarded by outboundLock.
+	private Object outboundLock;
+	private OutboundQueue outbound;
+	private ExecutorService writerThread;
+	private int sendQueueCapacity;
+	private int sendQueuePolicy;
+	private int coalesceBytes;
+	private long coalesceDelayNanos;
+	// Null for daemon platform threads. Guarded by outboundLock.
+	private ThreadFactory threadFactory;
+
+	private volatile CommandRegistry commandRegistry;
+	// Null if the keys are computed during the handshake.
+	private volatile DHKeyPool dhKeyPool;
+	// Zero for exponents as long as the modulus.
+	private volatile int dhExponentBits;
+	// Zero if idle connections are left as they are.
+	private volatile long idleTimeoutNanos;
 
 	public MessageCenter(CredentialProvider cp) {
+		this(cp, null);
+	}
+
+	/**
+	 * @param cp
+	 * @param engine
+	 *            If not null, the connection will be served by the engine's
+	 *            event loops and there is no need to call run().
+	 */
+	public MessageCenter(CredentialProvider cp, NioEngine engine) {
 		this.serverSocket = null;
+		this.engine = engine;
+		this.outboundLock = new Object();
+		this.sendQueueCapacity = 1024;
+		this.sendQueuePolicy = QUEUE_FULL_BLOCK;
+		this.coalesceBytes = 64 * 1024;
+		this.coalesceDelayNanos = 0;
+		this.commandRegistry = new CommandRegistry();
+		if (engine != null) {
+			this.bufferPool = engine.getBufferPool();
+		} else {
+			this.bufferPool = new BufferPool(2);
+		}
 
+		this.sessionLock = new ReentrantLock();
+		this.readGate = new ReadGate();
+		this.readGate.setResumeListener(new Runnable() {
+			public void run() {
+				NioSession s = session;
+				if (s != null) {
+					s.resumeReading();
+				}
+			}
+		});
 		this.sockLock = new ReentrantLock();
-		this.sockLock.lock();
 		this.currentConnHandlerId = -1;
 		this.connHandlerLock = new ReentrantReadWriteLock();
-		this.connHandlerLock.writeLock().lock();
+		this.state = STATE_NEW;
+		this.stateLock = new ReentrantLock();
+		this.stateChanged = this.stateLock.newCondition();
 		this.credentialProvider = cp;
 	}
 
+	/**
+	 * Connect to the server, blocking the caller until the handshake is
+	 * done. Any previous connection is closed first.
+	 * 
+	 * Without a {@link NioEngine}, run() reads from the connection. An
+	 * interrupt does not close it: a sender, or the writer of the send
+	 * queue stopped by stop(), notices the interrupt only while waiting for
+	 * its turn to write.
+	 */
 	public void connect(String address, int port, String service,
 			String username, MessageHandler msgHandler)
 			throws UnknownHostException, IOException, LoginException,
 			InterruptedException {
-		synchronized (this) {
-					
-			if (this.serverSocket != null) {
-				this.serverSocket.close();
-			}
-			this.serverSocket = new Socket(address, port);
-			ConnectionHandler handler = new ConnectionHandler(msgHandler,
-					address, port, service, username, this.credentialProvider);
-			handler.handshake(this.serverSocket.getInputStream(),
-					this.serverSocket.getOutputStream());
+		this.sessionLock.lock();
+		try {
+			if (this.connecting != null) {
+				this.connecting.close();
+				this.connecting = null;
+			}
+			if (this.session != null) {
+				this.session.close();
+				this.session = null;
+			}
+			// Senders wait for the new connection instead of using the
+			// old one.
+			this.connHandlerLock.writeLock().lock();
+			this.sockLock.lock();
+			boolean connected = false;
+			try {
+				if (this.serverSocket != null) {
+					this.serverSocket.close();
+					this.serverSocket = null;
+				}
+				// The handshake is done in blocking mode. With an engine,
+				// we switch to non-blocking mode after that. Otherwise, a
+				// plain socket is used: an interrupted sender would close a
+				// channel.
+				SocketChannel channel = null;
+				Socket socket = null;
+				if (this.engine != null) {
+					channel = SocketChannel.open(new InetSocketAddress(address, port));
+					socket = channel.socket();
+				} else {
+					socket = new Socket(address, port);
+				}
+				try {
+					msgHandler = attachStage(msgHandler);
+					ConnectionHandler handler = new ConnectionHandler(msgHandler,
+							address, port, service, username, this.credentialProvider,
+							this.bufferPool, this.commandRegistry, this.dhKeyPool,
+							this.dhExponentBits);
+					handler.handshake(socket.getInputStream(),
+							socket.getOutputStream());
+					this.serverSocket = socket;
+					this.handler = handler;
+					this.currentConnHandlerId = handler.getId();
+
+					if (channel != null) {
+						channel.configureBlocking(false);
+						this.session = new NioSession(this, channel, this.engine.nextLoop());
+						this.session.register();
+					}
+					connected = true;
+				} finally {
+					if (!connected) {
+						socket.close();
+					}
+				}
+				setState(STATE_CONNECTED);
+			} finally {
+				if (!connected) {
+					connectFailed();
+				}
+				this.sockLock.unlock();
+				this.connHandlerLock.writeLock().unlock();
+			}
+		} finally {
+			this.sessionLock.unlock();
+		}
+	}
+
+	private void setState(int s) {
+		this.stateLock.lock();
+		try {
+			this.state = s;
+			this.stateChanged.signalAll();
+		} finally {
+			this.stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Do not leave the senders waiting for a connection which did not
+	 * happen.
+	 */
+	private void connectFailed() {
+		this.stateLock.lock();
+		try {
+			if (this.state == STATE_NEW) {
+				this.state = STATE_CLOSED;
+				this.stateChanged.signalAll();
+			}
+		} finally {
+			this.stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the first connection is made, or failed.
+	 */
+	private void awaitConnection() throws InterruptedException {
+		this.stateLock.lockInterruptibly();
+		try {
+			while (this.state == STATE_NEW) {
+				this.stateChanged.await();
+			}
+		} finally {
+			this.stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Connect to the server without blocking the caller. The TCP connection
+	 * and the reads/writes of the handshake are driven by the event loops of
+	 * the engine, and the signature check and key exchange run on the
+	 * engine's worker executor.
+	 * 
+	 * The message center must have been created with a {@link NioEngine}.
+	 * It may be called from any thread. Until the returned future is
+	 * completed, the blocking send methods wait and the asynchronous ones
+	 * fail with an IOException.
+	 * 
+	 * @return A future completed with this message center once the server
+	 *         accepted us, or completed exceptionally (usually with a
+	 *         LoginException or an IOException) otherwise. If stop(),
+	 *         connect() or another connectAsync() comes first, it fails with
+	 *         a ClosedChannelException.
+	 */
+	public CompletableFuture<MessageCenter> connectAsync(String address,
+			int port, String service, String username, MessageHandler msgHandler) {
+		CompletableFuture<MessageCenter> future = new CompletableFuture<MessageCenter>();
+		if (this.engine == null) {
+			future.completeExceptionally(new IllegalStateException(
+					"asynchronous connection needs a NioEngine"));
+			return future;
+		}
+
+		this.sessionLock.lock();
+		try {
+			if (this.connecting != null) {
+				this.connecting.close();
+				this.connecting = null;
+			}
+			msgHandler = attachStage(msgHandler);
+			try {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress(address, port));
+				ConnectionHandler handler = new ConnectionHandler(msgHandler,
+						address, port, service, username, this.credentialProvider,
+						this.bufferPool, this.commandRegistry, this.dhKeyPool,
+						this.dhExponentBits);
+				AsyncHandshake handshake = new AsyncHandshake(this, handler,
+						this.engine.workerExecutor(), future);
+				this.connecting = new NioSession(this, channel, this.engine.nextLoop());
+				this.connecting.registerForHandshake(handshake);
+			} catch (IOException e) {
+				connectFailed();
+				future.completeExceptionally(e);
+			}
+		} finally {
+			this.sessionLock.unlock();
+		}
+		return future;
+	}
+
+	/**
+	 * Use the factory to create the threads of this message center: the one
+	 * started by start() and the writer of the send queue. Pass
+	 * VirtualThreads.factory("uniqush-") to run them on virtual threads.
+	 * Must be called before start() or any asynchronous send.
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		synchronized (this.outboundLock) {
+			this.threadFactory = factory;
+		}
+	}
+
+	/**
+	 * Let the connection shrink its state once it has been quiet (nothing
+	 * read or written) for the given time. It gives back its read buffers
+	 * and forgets the caches it keeps for decoding, and gets them again
+	 * with the next frame. Off by default. Should be called before
+	 * connecting.
+	 * 
+	 * With a {@link NioEngine}, the event loops look for idle connections
+	 * about once a second. Without one, the reader thread stays, but wakes
+	 * up once per timeout while the connection is quiet.
+	 * 
+	 * @param timeout
+	 *            Zero to turn it off.
+	 */
+	public void setIdleTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("negative timeout");
+		}
+		this.idleTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	long getIdleTimeoutNanos() {
+		return this.idleTimeoutNanos;
+	}
+
+	/**
+	 * Called by the reader (or the event loop) when the connection has
+	 * been quiet for the idle timeout.
+	 */
+	void onIdle() {
+		this.handler.trim();
+		if (this.engine == null) {
+			// Nothing else uses our own pool while we are quiet.
+			this.bufferPool.clear();
+		}
+	}
+
+	void onIdle(NioSession s) {
+		this.sessionLock.lock();
+		try {
+			if (s != this.session) {
+				return;
+			}
+		} finally {
+			this.sessionLock.unlock();
+		}
+		this.onIdle();
+	}
+
+	/**
+	 * @return The registry deciding what to do with the commands from the
+	 *         server. Processors registered in it are used from the next
+	 *         command on.
+	 */
+	public CommandRegistry getCommandRegistry() {
+		return this.commandRegistry;
+	}
+
+	/**
+	 * Use another registry, possibly shared with other message centers.
+	 * Takes effect on the next connection.
+	 */
+	public void setCommandRegistry(CommandRegistry registry) {
+		if (registry == null) {
+			throw new IllegalArgumentException("no command registry");
+		}
+		this.commandRegistry = registry;
+	}
+
+	/**
+	 * Take the Diffie-Hellman keys of the handshakes from a pool of keys
+	 * computed ahead of time, instead of computing one during each
+	 * handshake. This takes more than half of the Diffie-Hellman work out
+	 * of the handshake, which matters when many connections are made at
+	 * once, such as after a server restart. The pool may be shared by
+	 * several message centers. Takes effect on the next connection.
+	 * 
+	 * @param pool
+	 *            A pool of DHGroup.getGroup(14), or null to compute the
+	 *            keys during the handshakes. It is only used if the
+	 *            exponents of its group have the length given to
+	 *            setDHExponentBits(). Otherwise the keys are computed
+	 *            during the handshakes.
+	 */
+	public void setDHKeyPool(DHKeyPool pool) {
+		this.dhKeyPool = pool;
+	}
+
+	/**
+	 * Use shorter private Diffie-Hellman exponents than the 2048 bits of
+	 * the modulus. Both exponentiations of the handshake get several
+	 * times faster. Takes effect on the next connection.
+	 * 
+	 * @param bits
+	 *            At least DHGroup.MIN_EXPONENT_BITS, such as 256 or 320. 0
+	 *            goes back to full length exponents.
+	 */
+	public void setDHExponentBits(int bits) {
+		if (bits != 0 && (bits < DHGroup.MIN_EXPONENT_BITS
+				|| bits >= ConnectionHandler.DH_PUBLIC_KEY_LENGTH * 8)) {
+			throw new IllegalArgumentException("bad exponent length: " + bits);
+		}
+		this.dhExponentBits = bits;
+	}
+
+	private ThreadFactory threadFactory(final String name) {
+		synchronized (this.outboundLock) {
+			if (this.threadFactory != null) {
+				return this.threadFactory;
+			}
+		}
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, name);
+				th.setDaemon(true);
+				return th;
+			}
+		};
+	}
+
+	/**
+	 * Connect and run the message center on a new thread created by the
+	 * thread factory. With virtual threads, the blocking handshake, the
+	 * reads of run() and the calls to msgHandler all happen on a virtual
+	 * thread, so a JVM can keep a large number of connections without one
+	 * platform thread per connection.
+	 * 
+	 * Like connectAsync(), it may be called from any thread. Until the
+	 * returned future is completed, the blocking send methods wait and the
+	 * asynchronous ones fail with an IOException.
+	 * 
+	 * @return A future completed with this message center once the server
+	 *         accepted us, or completed exceptionally otherwise.
+	 */
+	public CompletableFuture<MessageCenter> start(final String address,
+			final int port, final String service, final String username,
+			final MessageHandler msgHandler) {
+		final CompletableFuture<MessageCenter> future = new CompletableFuture<MessageCenter>();
+		if (this.engine != null) {
+			future.completeExceptionally(new IllegalStateException(
+					"use connectAsync() with a NioEngine"));
+			return future;
+		}
+
+		final MessageCenter center = this;
+		Thread th = threadFactory("uniqush-reader").newThread(new Runnable() {
+			public void run() {
+				try {
+					center.connect(address, port, service, username, msgHandler);
+				} catch (Exception e) {
+					future.completeExceptionally(e);
+					return;
+				}
+				future.complete(center);
+				center.run();
+			}
+		});
+		th.start();
+		return future;
+	}
+
+	/**
+	 * @return The handler to give to the connection handler.
+	 */
+	private MessageHandler attachStage(MessageHandler msgHandler) {
+		if (msgHandler instanceof BatchMessageHandler) {
+			msgHandler = new BatchCollector((BatchMessageHandler) msgHandler, MAX_BATCH);
+		}
+		// stop() may have closed the gate of a previous connection.
+		this.readGate.reopen();
+		if (msgHandler instanceof InboundStage) {
+			this.stage = (InboundStage) msgHandler;
+			this.stage.attach(this.readGate);
+		} else {
+			this.stage = null;
+		}
+		return msgHandler;
+	}
+
+	/**
+	 * Called when everything read so far is handled.
+	 */
+	void endOfBurst() {
+		InboundStage s = this.stage;
+		if (s != null) {
+			s.endOfBurst();
+		}
+	}
+
+	private PollingStage pollingStage() {
+		InboundStage s = this.stage;
+		if (!(s instanceof PollingStage)) {
+			throw new IllegalStateException("connect with a PollingStage to poll");
+		}
+		return (PollingStage) s;
+	}
+
+	/**
+	 * Take the next inbound event, waiting up to the timeout for one. Only
+	 * works if the message center is connected with a {@link PollingStage}
+	 * as the message handler.
+	 * 
+	 * @return null on timeout.
+	 */
+	public InboundEvent poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return pollingStage().poll(timeout, unit);
+	}
+
+	/**
+	 * Move up to max inbound events into c without waiting, so that they
+	 * can be handled as a batch. Only works if the message center is
+	 * connected with a {@link PollingStage} as the message handler.
+	 * 
+	 * @return Number of events moved.
+	 */
+	public int drainTo(Collection<? super InboundEvent> c, int max) {
+		return pollingStage().drainTo(c, max);
+	}
+
+	/**
+	 * @return true if an InboundStage asked us to stop reading.
+	 */
+	boolean isReadPaused() {
+		return this.readGate.isPaused();
+	}
+
+	/**
+	 * Called on the event loop thread once the server accepted us.
+	 * 
+	 * @return false if another connection took over in the meantime.
+	 */
+	boolean onHandshakeDone(NioSession s, ConnectionHandler handler) {
+		this.sessionLock.lock();
+		try {
+			if (s != this.connecting) {
+				// Someone else took over.
+				s.close();
+				return false;
+			}
+			this.connecting = null;
+			this.connHandlerLock.writeLock().lock();
+			this.sockLock.lock();
+			NioSession old = this.session;
+			this.session = s;
+			this.serverSocket = s.socket();
 			this.handler = handler;
 			this.currentConnHandlerId = handler.getId();
-
+			setState(STATE_CONNECTED);
 			this.sockLock.unlock();
 			this.connHandlerLock.writeLock().unlock();
+			if (old != null) {
+				old.close();
+			}
+		} finally {
+			this.sessionLock.unlock();
 		}
+		s.handshakeDone();
+		return true;
 	}
 
-	protected synchronized void sendData(byte[] data, int connHandlerId) throws IOException,
+	void onHandshakeFailed(NioSession s, Exception e) {
+		this.sessionLock.lock();
+		try {
+			if (s == this.connecting) {
+				this.connecting = null;
+				connectFailed();
+			}
+		} finally {
+			this.sessionLock.unlock();
+		}
+		s.close();
+	}
+
+	/**
+	 * Encrypt and send a frame encoded by the connection handler.
+	 */
+	protected void sendData(byte[] data, int connHandlerId) throws IOException,
 			InterruptedException {
-		this.sockLock.lock();
+		this.sockLock.lockInterruptibly();
 		if (this.serverSocket == null) {
 			this.sockLock.unlock();
 			throw new IOException("Not ready");
@@ -91,7 +645,14 @@ public class MessageCenter implements Runnable {
 			throw new EOFException("connection handler id mismatch");
 		}
 		try {
-			this.serverSocket.getOutputStream().write(data);
+			// Sealing and writing under the same lock keeps the frames
+			// on the wire in the order of the cipher's counter.
+			this.handler.sealFrame(data);
+			if (this.session != null) {
+				this.session.write(data);
+			} else {
+				this.serverSocket.getOutputStream().write(data);
+			}
 		} catch (IOException e) {
 			this.sockLock.unlock();
 			throw e;
@@ -99,6 +660,48 @@ public class MessageCenter implements Runnable {
 		this.sockLock.unlock();
 	}
 
+	/**
+	 * Encrypt the first n frames and send them with one write.
+	 */
+	protected void sendData(byte[][] frames, int n, int connHandlerId)
+			throws IOException, InterruptedException {
+		this.sockLock.lockInterruptibly();
+		try {
+			if (this.serverSocket == null) {
+				throw new IOException("Not ready");
+			}
+			if (connHandlerId != this.currentConnHandlerId) {
+				throw new EOFException("connection handler id mismatch");
+			}
+			for (int i = 0; i < n; i++) {
+				this.handler.sealFrame(frames[i]);
+			}
+			if (this.session != null) {
+				this.session.write(frames, n);
+				return;
+			}
+			// One write for the whole batch.
+			int len = 0;
+			for (int i = 0; i < n; i++) {
+				len += frames[i].length;
+			}
+			byte[] buf = new byte[len];
+			int off = 0;
+			for (int i = 0; i < n; i++) {
+				System.arraycopy(frames[i], 0, buf, off, frames[i].length);
+				off += frames[i].length;
+			}
+			this.serverSocket.getOutputStream().write(buf);
+		} finally {
+			this.sockLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a command into a frame which is not encrypted yet. Encoding
+	 * may happen on many threads at once; the frames are encrypted and
+	 * written one by one in sendData().
+	 */
 	interface DataMarshaler {
 		public byte[] marshal() throws InterruptedException, IOException;
 	}
@@ -106,116 +709,464 @@ public class MessageCenter implements Runnable {
 	protected void marshalThenSend(DataMarshaler m)
 			throws InterruptedException, IOException {
 		int connHandlerId = -1;
-		this.connHandlerLock.readLock().lock();
-		if (this.handler == null) {
+		byte[] data = null;
+		awaitConnection();
+		this.connHandlerLock.readLock().lockInterruptibly();
+		try {
+			if (this.handler == null || this.state != STATE_CONNECTED) {
+				throw new IOException("Not ready");
+			}
+			data = m.marshal();
+			connHandlerId = this.handler.getId();
+		} finally {
 			this.connHandlerLock.readLock().unlock();
-			throw new IOException("Not ready");
 		}
-		byte[] data = m.marshal();
-		connHandlerId = this.handler.getId();
-		this.connHandlerLock.readLock().unlock();
 		sendData(data, connHandlerId);
 	}
 
-	public void sendMessageToUser(final String service, final String username,
-			final Message msg, final int ttl) throws InterruptedException,
-			IOException {
-		marshalThenSend(new DataMarshaler() {
+	/**
+	 * Configure the queue used by the asynchronous send methods. Must be
+	 * called before any of them.
+	 * 
+	 * @param capacity
+	 *            Maximum number of commands waiting to be sent. 1024 by
+	 *            default.
+	 * @param policy
+	 *            What to do when the queue is full: QUEUE_FULL_BLOCK (the
+	 *            default), QUEUE_FULL_FAIL or QUEUE_FULL_DROP_OLDEST.
+	 */
+	public void setSendQueue(int capacity, int policy) {
+		synchronized (this.outboundLock) {
+			if (this.outbound != null) {
+				throw new IllegalStateException("the send queue is already in use");
+			}
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("capacity should be positive");
+			}
+			this.sendQueueCapacity = capacity;
+			this.sendQueuePolicy = policy;
+		}
+	}
+
+	/**
+	 * Configure how the asynchronous send methods coalesce frames. The
+	 * writer collects queued frames until it has maxBatchBytes of them or
+	 * the queue is empty, and writes them with one system call. If maxDelay
+	 * is positive, a smaller batch is held back up to that long for more
+	 * frames, adding at most that much latency to each command. The writer
+	 * thread is free meanwhile. By default nothing is held back and up to
+	 * 64K are collected.
+	 */
+	public void setWriteCoalescing(int maxBatchBytes, long maxDelay, TimeUnit unit) {
+		long delay = unit.toNanos(maxDelay);
+		synchronized (this.outboundLock) {
+			if (this.outbound != null) {
+				this.outbound.setCoalescing(maxBatchBytes, delay);
+			} else if (maxBatchBytes <= 0 || delay < 0) {
+				throw new IllegalArgumentException("bad coalescing parameters");
+			}
+			this.coalesceBytes = maxBatchBytes;
+			this.coalesceDelayNanos = delay;
+		}
+	}
+
+	/**
+	 * @return Number of commands waiting in the send queue.
+	 */
+	public int sendQueueSize() {
+		synchronized (this.outboundLock) {
+			if (this.outbound == null) {
+				return 0;
+			}
+			return this.outbound.size();
+		}
+	}
+
+	/**
+	 * @return null if stop() has been called since the last connection.
+	 */
+	private OutboundQueue outboundQueue() {
+		synchronized (this.outboundLock) {
+			if (this.outbound != null) {
+				return this.outbound;
+			}
+			if (this.state == STATE_CLOSED) {
+				return null;
+			}
+			Executor writer = null;
+			if (this.engine != null) {
+				// The socket does not block in this case, but sendData()
+				// may still wait on a worker for sockLock while another
+				// thread sends or connect() switches connections.
+				writer = this.engine.workerExecutor();
+			} else {
+				this.writerThread = Executors.newSingleThreadExecutor(threadFactory("uniqush-writer"));
+				writer = this.writerThread;
+			}
+			this.outbound = new OutboundQueue(this.sendQueueCapacity,
+					this.sendQueuePolicy, writer, new OutboundQueue.Sender() {
+						public void send(byte[][] frames, int n, int connHandlerId)
+								throws InterruptedException, IOException {
+							sendData(frames, n, connHandlerId);
+						}
+					});
+			this.outbound.setCoalescing(this.coalesceBytes, this.coalesceDelayNanos);
+			return this.outbound;
+		}
+	}
+
+	/**
+	 * Encode the command on the caller's thread and queue the frame for the
+	 * writer, which encrypts and sends it. Never waits for a connection:
+	 * while there is none, or while connect() is switching to a new one,
+	 * the future fails with "Not ready".
+	 */
+	protected CompletableFuture<Void> marshalThenSendAsync(DataMarshaler m) {
+		int connHandlerId = -1;
+		byte[] data = null;
+		if (!this.connHandlerLock.readLock().tryLock()) {
+			return notReady();
+		}
+		try {
+			if (this.handler == null || this.state != STATE_CONNECTED) {
+				return notReady();
+			}
+			data = m.marshal();
+			connHandlerId = this.handler.getId();
+		} catch (Exception e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		} finally {
+			this.connHandlerLock.readLock().unlock();
+		}
+		OutboundQueue q = outboundQueue();
+		if (q == null) {
+			return notReady();
+		}
+		return q.offer(data, connHandlerId);
+	}
+
+	private static CompletableFuture<Void> notReady() {
+		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+		failed.completeExceptionally(new IOException("Not ready"));
+		return failed;
+	}
+
+	private DataMarshaler messageToUser(final String service,
+			final String username, final Message msg, final int ttl) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
 				return handler
 						.marshalMessageToUser(service, username, msg, ttl);
 			}
-		});
+		};
 	}
 
-	public void sendMessageToServer(final Message msg)
-			throws InterruptedException, IOException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler messageToServer(final Message msg) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
 				return handler.marshalMessageToServer(msg);
 			}
-		});
+		};
 	}
 
-	public void requestAllSince(final Date since) throws IOException,
-			InterruptedException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler requestAllSinceCommand(final Date since) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
 				return handler.marshalRequestAllSince(since);
 			}
-		});
+		};
 	}
 
-	public void config(final int digestThreshold, final int compressThreshold,
-			final List<String> digestFields) throws IOException,
-			InterruptedException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler configCommand(final int digestThreshold,
+			final int compressThreshold, final List<String> digestFields) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
 				return handler.marshalConfigCommand(digestThreshold,
 						compressThreshold, digestFields);
 			}
-		});
+		};
 	}
 
-	public void requestMessage(final String id) throws InterruptedException,
-			IOException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler requestMessageCommand(final String id) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
 				return handler.marshalRequestMessageCommand(id);
 			}
-		});
+		};
 	}
 
-	public void subscribe(final Map<String, String> params)
-			throws InterruptedException, IOException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler subscriptionCommand(final Map<String, String> params,
+			final boolean sub) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
-				return handler.marshalSubscriptionCommand(params, true);
+				return handler.marshalSubscriptionCommand(params, sub);
 			}
-		});
+		};
 	}
 
-	public void unsubscribe(final Map<String, String> params)
-			throws InterruptedException, IOException {
-		marshalThenSend(new DataMarshaler() {
+	private DataMarshaler setVisibilityCommand(final boolean visible) {
+		return new DataMarshaler() {
 			public byte[] marshal() throws InterruptedException, IOException {
-				return handler.marshalSubscriptionCommand(params, false);
+				return handler.marshalSetVisibilityCommand(visible);
 			}
-		});
+		};
+	}
+
+	public void sendMessageToUser(String service, String username,
+			Message msg, int ttl) throws InterruptedException,
+			IOException {
+		marshalThenSend(messageToUser(service, username, msg, ttl));
 	}
 
-	public void setVisibility(final boolean visible) throws IOException,
+	public void sendMessageToServer(Message msg)
+			throws InterruptedException, IOException {
+		marshalThenSend(messageToServer(msg));
+	}
+
+	public void requestAllSince(Date since) throws IOException,
 			InterruptedException {
-		marshalThenSend(new DataMarshaler() {
-			public byte[] marshal() throws InterruptedException, IOException {
-				return handler.marshalSetVisibilityCommand(visible);
-			}
-		});
+		marshalThenSend(requestAllSinceCommand(since));
 	}
 
-	private int readFull(InputStream istream, byte[] buf, int length) {
-		int n = 0;
-		while (n < length) {
-			try {
-				int i = istream.read(buf, n, length - n);
-				if (i < 0) {
-					return n;
+	public void config(int digestThreshold, int compressThreshold,
+			List<String> digestFields) throws IOException,
+			InterruptedException {
+		marshalThenSend(configCommand(digestThreshold, compressThreshold,
+				digestFields));
+	}
+
+	public void requestMessage(String id) throws InterruptedException,
+			IOException {
+		marshalThenSend(requestMessageCommand(id));
+	}
+
+	public void subscribe(Map<String, String> params)
+			throws InterruptedException, IOException {
+		marshalThenSend(subscriptionCommand(params, true));
+	}
+
+	public void unsubscribe(Map<String, String> params)
+			throws InterruptedException, IOException {
+		marshalThenSend(subscriptionCommand(params, false));
+	}
+
+	public void setVisibility(boolean visible) throws IOException,
+			InterruptedException {
+		marshalThenSend(setVisibilityCommand(visible));
+	}
+
+	// The asynchronous versions of the methods above. They queue the
+	// command and return at once (unless the queue is full and its policy
+	// is QUEUE_FULL_BLOCK). The returned future is completed once the
+	// command is written, or completed exceptionally if it could not be.
+
+	public CompletableFuture<Void> sendMessageToUserAsync(String service,
+			String username, Message msg, int ttl) {
+		return marshalThenSendAsync(messageToUser(service, username, msg, ttl));
+	}
+
+	public CompletableFuture<Void> sendMessageToServerAsync(Message msg) {
+		return marshalThenSendAsync(messageToServer(msg));
+	}
+
+	public CompletableFuture<Void> requestAllSinceAsync(Date since) {
+		return marshalThenSendAsync(requestAllSinceCommand(since));
+	}
+
+	public CompletableFuture<Void> configAsync(int digestThreshold,
+			int compressThreshold, List<String> digestFields) {
+		return marshalThenSendAsync(configCommand(digestThreshold,
+				compressThreshold, digestFields));
+	}
+
+	public CompletableFuture<Void> requestMessageAsync(String id) {
+		return marshalThenSendAsync(requestMessageCommand(id));
+	}
+
+	public CompletableFuture<Void> subscribeAsync(Map<String, String> params) {
+		return marshalThenSendAsync(subscriptionCommand(params, true));
+	}
+
+	public CompletableFuture<Void> unsubscribeAsync(Map<String, String> params) {
+		return marshalThenSendAsync(subscriptionCommand(params, false));
+	}
+
+	public CompletableFuture<Void> setVisibilityAsync(boolean visible) {
+		return marshalThenSendAsync(setVisibilityCommand(visible));
+	}
+
+	int nextChunkSize() {
+		return this.handler.nextChunkSize();
+	}
+
+	/**
+	 * @return The pool of buffers used to read from the server. Its
+	 *         statistics tell how well the buffers are recycled.
+	 */
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	/**
+	 * Feed one chunk to the connection handler, send the replies and carry
+	 * out the action, if any.
+	 *
+	 * Only the reading side of the connection should call this method.
+	 * The chunk may be overwritten, and the buffer can be reused once the
+	 * method returns.
+	 * 
+	 * @return false if we should stop reading.
+	 */
+	boolean processChunk(byte[] buf, int offset, int length) {
+		int hid = this.handler.getId();
+		Action action = this.handler.onData(buf, offset, length);
+		List<byte[]> reply = this.handler.takeReplies();
+		if (reply != null) {
+			Iterator<byte[]> iter = reply.iterator();
+			while (iter.hasNext()) {
+				byte[] r = iter.next();
+				try {
+					this.sendData(r, hid);
+				} catch (IOException e) {
+					this.handler.onError(e);
+					return false;
+				} catch (InterruptedException e) {
+					return false;
 				}
-				n += i;
-			} catch (IOException e) {
-				return n;
 			}
 		}
-		return n;
+
+		if (action == null) {
+			return true;
+		}
+		switch (action.type()) {
+		case Action.ACTION_RECONNECT:
+			ReconnectAction ra = (ReconnectAction) action;
+			String host = ra.getHost();
+			int port = ra.getPort();
+			if (host == null || port <= 0 || host.length() <= 0) {
+				break;
+			}
+			final MessageHandler mhandler = this.handler.getHandler();
+			String service = this.handler.getService();
+			String username = this.handler.getUsername();
+
+			if (this.engine != null) {
+				// Let the old connection go first: the old server closing it
+				// must not stop us. Do not block the event loop.
+				detachSession();
+				this.connectAsync(host, port, service, username, mhandler)
+						.whenComplete(new BiConsumer<MessageCenter, Throwable>() {
+							public void accept(MessageCenter c, Throwable e) {
+								if (e != null) {
+									mhandler.onError(e instanceof Exception ? (Exception) e
+											: new Exception(e));
+									redirectFailed();
+								}
+							}
+						});
+				return false;
+			}
+
+			try {
+				// Closes this connection first.
+				this.connect(host, port, service, username, mhandler);
+			} catch (Exception e) {
+				mhandler.onError(e);
+				return false;
+			}
+			break;
+		case Action.ACTION_CLOSE:
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close the current session and forget about it, so that nothing is
+	 * sent to the server which redirected us.
+	 */
+	private void detachSession() {
+		this.sessionLock.lock();
+		try {
+			this.connHandlerLock.writeLock().lock();
+			this.sockLock.lock();
+			if (this.session != null) {
+				this.session.close();
+				this.session = null;
+			}
+			this.serverSocket = null;
+			this.sockLock.unlock();
+			this.connHandlerLock.writeLock().unlock();
+		} finally {
+			this.sessionLock.unlock();
+		}
+	}
+
+	/**
+	 * Stop if the redirect was the last hope for a connection.
+	 */
+	private void redirectFailed() {
+		this.sessionLock.lock();
+		try {
+			if (this.session != null || this.connecting != null) {
+				// Someone else connected us in the meantime.
+				return;
+			}
+		} finally {
+			this.sessionLock.unlock();
+		}
+		this.stop();
+	}
+
+	void onSessionEnd(NioSession s) {
+		if (s.isClosed()) {
+			// Closed by stop() or connect().
+			return;
+		}
+		if (s != this.session) {
+			// An old connection. We have already reconnected.
+			s.close();
+			return;
+		}
+		this.stop();
+	}
+
+	void onSessionError(NioSession s, IOException e) {
+		if (s.isClosed()) {
+			return;
+		}
+		if (s != this.session) {
+			s.close();
+			return;
+		}
+		this.handler.onError(e);
+		this.stop();
 	}
 
+	/**
+	 * Read from the connection until it is closed. Not needed if the
+	 * message center was created with a {@link NioEngine}.
+	 */
 	@Override
 	public void run() {
+		if (this.engine != null) {
+			return;
+		}
 		InputStream istream = null;
+		Socket sock = null;
 		this.sockLock.lock();
 
 		try {
-			istream = this.serverSocket.getInputStream();
+			sock = this.serverSocket;
+			if (sock == null) {
+				// Not connected, or stopped already.
+				this.sockLock.unlock();
+				return;
+			}
+			istream = sock.getInputStream();
 		} catch (IOException e) {
 			this.sockLock.unlock();
 			this.handler.onError(e);
@@ -223,7 +1174,12 @@ public class MessageCenter implements Runnable {
 		}
 		this.sockLock.unlock();
 
-		loop: do {
+		// Reads as much as the socket has, so a burst of frames is
+		// usually sliced out of a single read.
+		ReadAheadBuffer in = new ReadAheadBuffer(this.bufferPool);
+		setReadTimeout(sock);
+		boolean idle = false;
+		do {
 			// we don't need to lock the handler,
 			// because the current thread is the owner of the handler.
 			// There will be no other thread which changes the handler.
@@ -232,93 +1188,132 @@ public class MessageCenter implements Runnable {
 				break;
 			}
 
-			// XXX GC is not free.
-			byte[] data = new byte[len];
-			int n = readFull(istream, data, len);
-			if (n != len) {
-				break;
+			if (in.available() < len) {
+				// We are going to wait for the server.
+				this.endOfBurst();
 			}
 
-			ArrayList<byte[]> reply = new ArrayList<byte[]>();
-			int hid = this.handler.getId();
-			Action action = this.handler.onData(data, reply);
-			if (reply != null && reply.size() > 0) {
-				Iterator<byte[]> iter = reply.iterator();
-				while (iter.hasNext()) {
-					byte[] r = iter.next();
-					try {
-						this.sendData(r, hid);
-					} catch (IOException e) {
-						this.handler.onError(e);
-						break loop;
-					} catch (InterruptedException e) {
-						break loop;
-					}
-				}
+			try {
+				// Wait for the handler side to catch up.
+				this.readGate.awaitOpen();
+			} catch (InterruptedException e) {
+				break;
 			}
 
-			if (action == null) {
-				continue;
-			}
-			switch (action.type()) {
-			case Action.ACTION_RECONNECT:
-				ReconnectAction ra = (ReconnectAction) action;
-				String host = ra.getHost();
-				int port = ra.getPort();
-				if (host == null || port <= 0 || host.length() <= 0) {
+			try {
+				if (!in.fill(istream, len)) {
 					break;
 				}
-				MessageHandler mhandler = this.handler.getHandler();
-				String service = this.handler.getService();
-				String username = this.handler.getUsername();
-
-				this.connHandlerLock.writeLock().lock();
-				this.sockLock.lock();
-				try {
-					this.serverSocket.close();
-				} catch (IOException e1) {
-					// error on close?
+			} catch (SocketTimeoutException e) {
+				// Quiet for the idle timeout. Whatever was read is kept.
+				if (!idle) {
+					idle = true;
+					in.trim();
+					this.onIdle();
 				}
-				try {
-					this.connect(host, port, service, username, mhandler);
-				} catch (Exception e) {
-					mhandler.onError(e);
-					break loop;
-				}
-				
+				continue;
+			} catch (IOException e) {
+				break;
+			}
+			idle = false;
+
+			boolean goon = this.processChunk(in.array(), in.position(), len);
+			in.skip(len);
+			if (!goon) {
+				break;
+			}
 
+			if (sock != this.serverSocket) {
+				// We have been redirected to another server.
+				// Anything left came from the old one.
+				in.clear();
 				this.sockLock.lock();
 				try {
-					istream = this.serverSocket.getInputStream();
+					sock = this.serverSocket;
+					if (sock == null) {
+						// Stopped.
+						this.sockLock.unlock();
+						break;
+					}
+					istream = sock.getInputStream();
 				} catch (IOException e) {
 					this.sockLock.unlock();
+					in.release();
 					this.handler.onError(e);
 					return;
 				}
 				this.sockLock.unlock();
-				break;
-			case Action.ACTION_CLOSE:
-				break loop;
+				setReadTimeout(sock);
 			}
-
 		} while (true);
+		in.release();
 		this.stop();
 	}
 
+	private void setReadTimeout(Socket sock) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(this.idleTimeoutNanos);
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			sock.setSoTimeout((int) Math.min(millis, Integer.MAX_VALUE));
+		} catch (SocketException e) {
+			// Then we will never know we are idle.
+		}
+	}
+
 	public void stop() {
-		synchronized (this) {
+		// No new send queue from now on.
+		setState(STATE_CLOSED);
+		synchronized (this.outboundLock) {
+			if (this.outbound != null) {
+				this.outbound.close(new IOException("connection closed"));
+				// The next connection gets a new queue.
+				this.outbound = null;
+			}
+			if (this.writerThread != null) {
+				// Wake up the writer if it is waiting for the socket.
+				this.writerThread.shutdownNow();
+				this.writerThread = null;
+			}
+		}
+		// Do not leave the reader waiting.
+		this.readGate.close();
+		this.sessionLock.lock();
+		try {
 			this.connHandlerLock.writeLock().lock();
 			this.sockLock.lock();
-			this.handler.onCloseStart();
 			try {
-				if (this.serverSocket != null) {
-					this.serverSocket.close();
+				// The handler hears about it once, even if both the reader
+				// and the application stop us.
+				boolean open = this.serverSocket != null && this.handler != null;
+				if (open) {
+					this.handler.onCloseStart();
 				}
-			} catch (IOException e) {
-				// WTF. What do you want me to do?
+				if (this.session != null) {
+					this.session.close();
+				}
+				if (this.connecting != null) {
+					this.connecting.close();
+					this.connecting = null;
+				}
+				try {
+					if (this.serverSocket != null) {
+						this.serverSocket.close();
+					}
+				} catch (IOException e) {
+					// WTF. What do you want me to do?
+				}
+				this.serverSocket = null;
+				if (open) {
+					this.handler.onClosed();
+				}
+			} finally {
+				this.sockLock.unlock();
+				this.connHandlerLock.writeLock().unlock();
 			}
-			this.serverSocket = null;
-			this.handler.onClosed();
+		} finally {
+			this.sessionLock.unlock();
 		}
 	}
 
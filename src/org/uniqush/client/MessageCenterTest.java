@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MessageCenterTest {
+
+	private static class QueueHandler implements MessageHandler {
+		BlockingQueue<String> ids = new LinkedBlockingQueue<String>();
+
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+			ids.add(id);
+		}
+
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+			ids.add(id);
+		}
+
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onMessageDigestFromUser(boolean online,
+				String dstService, String dstUser, String srcService,
+				String srcUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onCloseStart() {
+		}
+
+		public void onClosed() {
+		}
+
+		public void onError(Exception e) {
+		}
+	}
+
+	@Test
+	public void testStopDuringHandshake() throws Exception {
+		TestServer server = new TestServer(0, true);
+		NioEngine engine = new NioEngine(1);
+		try {
+			MessageCenter center = new MessageCenter(TestServer.credentials(), engine);
+			CompletableFuture<MessageCenter> future = center.connectAsync(
+					"127.0.0.1", server.port(), "service", "user", new QueueHandler());
+			center.stop();
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				fail("the handshake should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ClosedChannelException);
+			}
+		} finally {
+			engine.shutdown();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testRedirect() throws Exception {
+		TestServer target = new TestServer(3, false);
+		final String address = "127.0.0.1:" + target.port();
+		// Sends us away, then hangs up.
+		TestServer server = new TestServer(0, false) {
+			protected boolean onAuthenticated(Connection conn) throws Exception {
+				Command cmd = new Command(Command.CMD_REDIRECT, null);
+				cmd.AppendParameter(address);
+				conn.send(cmd);
+				return false;
+			}
+		};
+		NioEngine engine = new NioEngine(1);
+		try {
+			MessageCenter center = new MessageCenter(TestServer.credentials(), engine);
+			QueueHandler handler = new QueueHandler();
+			center.connectAsync("127.0.0.1", server.port(), "service", "user",
+					handler).get(10, TimeUnit.SECONDS);
+			for (int i = 0; i < 3; i++) {
+				assertEquals("id" + i, handler.ids.poll(10, TimeUnit.SECONDS));
+			}
+			center.stop();
+		} finally {
+			engine.shutdown();
+			server.close();
+			target.close();
+		}
+	}
+}
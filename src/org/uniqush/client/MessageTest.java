@@ -19,6 +19,11 @@ package org.uniqush.client;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.junit.Test;
@@ -63,4 +68,23 @@ public class MessageTest {
 		}
 	}
 
+	@Test
+	public void testSerialize() throws Exception {
+		Message msg = new Message();
+		msg.put("hello", "world");
+		msg.put(new byte[] {1, 2, 3});
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bo);
+		out.writeObject(msg);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bo.toByteArray()));
+		Message m = (Message) in.readObject();
+		if (!"world".equals(m.get("hello")) || m.getHeader().size() != 1) {
+			fail("bad header");
+		}
+		if (!Arrays.equals(new byte[] {1, 2, 3}, m.getBody())) {
+			fail("bad body");
+		}
+	}
+
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of selector threads which serves the connections of many
+ * {@link MessageCenter}s.
+ *
+ * A MessageCenter created with an engine does not need its own thread:
+ * once connected, its socket is registered with one of the event loops
+ * and the connection's state machine is driven by readiness events.
+ *
+ * @author monnand
+ */
+public class NioEngine {
+	private EventLoop[] loops;
+	private AtomicInteger next;
+
+	// Runs the CPU heavy part of the handshakes started by
+	// MessageCenter.connectAsync() and encodes the commands queued by
+	// the asynchronous send methods.
+	private Executor workers;
+	private ExecutorService ownExecutor;
+
+	// Shared by all connections served by the engine.
+	private BufferPool bufferPool;
+
+	/**
+	 * @param nrLoops
+	 *            Number of event loop threads. Each of them owns one
+	 *            selector.
+	 * @throws IOException
+	 */
+	public NioEngine(int nrLoops) throws IOException {
+		this(nrLoops, null);
+	}
+
+	/**
+	 * @param nrLoops
+	 *            Number of event loop threads. Each of them owns one
+	 *            selector.
+	 * @param workers
+	 *            Where to verify the server's signature and do the key
+	 *            exchange for asynchronous connections, and where to encode
+	 *            the commands queued by asynchronous sends. If null, a fixed
+	 *            pool with one thread per core is used.
+	 * @throws IOException
+	 */
+	public NioEngine(int nrLoops, Executor workers) throws IOException {
+		if (nrLoops <= 0) {
+			throw new IllegalArgumentException("need at least one event loop");
+		}
+		if (workers == null) {
+			this.ownExecutor = Executors.newFixedThreadPool(Runtime
+					.getRuntime().availableProcessors(), new ThreadFactory() {
+				private AtomicInteger n = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "uniqush-worker-" + n.getAndIncrement());
+					th.setDaemon(true);
+					return th;
+				}
+			});
+			workers = this.ownExecutor;
+		}
+		this.workers = workers;
+		this.bufferPool = new BufferPool(Math.max(nrLoops, Runtime.getRuntime().availableProcessors()) * 2);
+		this.next = new AtomicInteger(0);
+		this.loops = new EventLoop[nrLoops];
+		for (int i = 0; i < nrLoops; i++) {
+			this.loops[i] = new EventLoop("uniqush-nio-" + i);
+		}
+		for (int i = 0; i < nrLoops; i++) {
+			this.loops[i].start();
+		}
+	}
+
+	public NioEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	EventLoop nextLoop() {
+		int i = (this.next.getAndIncrement() & 0x7FFFFFFF) % this.loops.length;
+		return this.loops[i];
+	}
+
+	Executor workerExecutor() {
+		return this.workers;
+	}
+
+	/**
+	 * @return The pool of buffers shared by the connections of this engine.
+	 */
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	public int nrLoops() {
+		return this.loops.length;
+	}
+
+	/**
+	 * Stop all event loops. Connections still registered with the engine
+	 * will be closed.
+	 */
+	public void shutdown() {
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i].shutdown();
+		}
+		if (this.ownExecutor != null) {
+			this.ownExecutor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One non-blocking connection served by an {@link EventLoop}.
+ *
+ * Bytes are read whenever the channel is readable and chopped into
+ * chunks of the size the connection handler asks for, so the
+ * ConnectionHandler's frame decoder sees exactly what the blocking reader
+ * would have given it.
+ */
+class NioSession {
+	private final static int INITIAL_BUFFER_SIZE = 4096;
+
+	private MessageCenter center;
+	private SocketChannel channel;
+	private EventLoop loop;
+	private SelectionKey key;
+	private BufferPool pool;
+
+	// Only touched on the loop thread. Taken from the pool when there is
+	// something to read, and given back when the connection is idle.
+	private ByteBuffer readBuf;
+	// When we last read or wrote something. Only touched on the loop
+	// thread.
+	private long lastActive;
+	private boolean idle;
+
+	private Queue<ByteBuffer> outbound;
+	private volatile boolean closed;
+
+	// Non-null until the handshake is done.
+	private volatile AsyncHandshake handshake;
+
+	public NioSession(MessageCenter center, SocketChannel channel, EventLoop loop) {
+		this.center = center;
+		this.channel = channel;
+		this.loop = loop;
+		this.pool = center.getBufferPool();
+		this.readBuf = null;
+		this.lastActive = System.nanoTime();
+		this.idle = false;
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.closed = false;
+	}
+
+	private void active() {
+		this.lastActive = System.nanoTime();
+		this.idle = false;
+	}
+
+	/**
+	 * Called on the loop thread from time to time. Give back what we can
+	 * if nothing happened for the idle timeout of the message center.
+	 */
+	void checkIdle(long now) {
+		if (this.idle || this.closed || this.handshake != null) {
+			return;
+		}
+		long timeout = this.center.getIdleTimeoutNanos();
+		if (timeout <= 0 || now - this.lastActive < timeout) {
+			return;
+		}
+		this.idle = true;
+		if (this.readBuf != null && this.readBuf.position() == 0) {
+			this.pool.release(this.readBuf.array());
+			this.readBuf = null;
+		}
+		this.center.onIdle(this);
+	}
+
+	void register() {
+		this.register(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Register a channel which is still connecting and do the handshake
+	 * without blocking.
+	 */
+	void registerForHandshake(AsyncHandshake handshake) {
+		this.handshake = handshake;
+		handshake.setSession(this);
+		this.register(SelectionKey.OP_CONNECT);
+	}
+
+	private void register(final int ops) {
+		this.loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = channel.register(loop.selector(), ops, NioSession.this);
+				} catch (ClosedChannelException e) {
+					close();
+					return;
+				}
+				if ((ops & SelectionKey.OP_CONNECT) == 0) {
+					// Someone may have queued data before we were registered.
+					flush();
+				}
+			}
+		});
+	}
+
+	void onConnectable() {
+		try {
+			if (!this.channel.finishConnect()) {
+				return;
+			}
+		} catch (IOException e) {
+			this.handshake.fail(e);
+			return;
+		}
+		this.key.interestOps(SelectionKey.OP_READ);
+		flush();
+	}
+
+	/**
+	 * Called on the loop thread once the handshake is done. From now on,
+	 * chunks go to the message center.
+	 */
+	void handshakeDone() {
+		this.handshake = null;
+	}
+
+	/**
+	 * Look at the buffered data again. Used when the handshake was waiting
+	 * for the worker executor.
+	 */
+	void resume() {
+		this.loop.execute(new Runnable() {
+			public void run() {
+				if (closed || readBuf == null) {
+					return;
+				}
+				readBuf.flip();
+				processBuffered();
+			}
+		});
+	}
+
+	/**
+	 * Read again after the message center's read gate was paused.
+	 */
+	void resumeReading() {
+		this.loop.execute(new Runnable() {
+			public void run() {
+				if (closed || key == null || !key.isValid()) {
+					return;
+				}
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				if (readBuf != null) {
+					readBuf.flip();
+					processBuffered();
+				}
+			}
+		});
+	}
+
+	private int nextChunkSize() {
+		if (this.handshake != null) {
+			return this.handshake.nextChunkSize();
+		}
+		return this.center.nextChunkSize();
+	}
+
+	private boolean processChunk(byte[] buf, int offset, int length) {
+		if (this.handshake != null) {
+			return this.handshake.processChunk(buf, offset, length);
+		}
+		return this.center.processChunk(buf, offset, length);
+	}
+
+	Socket socket() {
+		return this.channel.socket();
+	}
+
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Queue the data and let the loop write it out.
+	 */
+	void write(byte[] data) throws IOException {
+		if (this.closed) {
+			throw new IOException("connection closed");
+		}
+		this.outbound.add(ByteBuffer.wrap(data));
+		scheduleFlush();
+	}
+
+	/**
+	 * Queue the first n frames. They will be written together.
+	 */
+	void write(byte[][] frames, int n) throws IOException {
+		if (this.closed) {
+			throw new IOException("connection closed");
+		}
+		for (int i = 0; i < n; i++) {
+			this.outbound.add(ByteBuffer.wrap(frames[i]));
+		}
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (this.loop.inLoop()) {
+			flush();
+			return;
+		}
+		this.loop.execute(new Runnable() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Write as much of the queue as the socket takes, gathering up to
+	 * EventLoop.MAX_GATHER buffers per system call.
+	 */
+	private void flush() {
+		if (this.key == null || this.closed || !this.channel.isConnected()) {
+			return;
+		}
+		ByteBuffer[] gather = this.loop.gatherBuffers();
+		try {
+			while (true) {
+				int n = 0;
+				Iterator<ByteBuffer> iter = this.outbound.iterator();
+				while (n < gather.length && iter.hasNext()) {
+					gather[n++] = iter.next();
+				}
+				if (n == 0) {
+					break;
+				}
+				this.channel.write(gather, 0, n);
+				this.active();
+				int done = 0;
+				while (done < n && !gather[done].hasRemaining()) {
+					this.outbound.poll();
+					done++;
+				}
+				for (int i = 0; i < n; i++) {
+					gather[i] = null;
+				}
+				if (done < n) {
+					// The socket buffer is full. Wait until it is writable.
+					this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			this.failed(e);
+		}
+	}
+
+	void onWritable() {
+		flush();
+	}
+
+	void onReadable() {
+		if (this.readBuf == null) {
+			this.readBuf = ByteBuffer.wrap(this.pool.acquire(INITIAL_BUFFER_SIZE));
+		}
+		int n = 0;
+		try {
+			n = this.channel.read(this.readBuf);
+		} catch (IOException e) {
+			this.failed(e);
+			return;
+		}
+		if (n < 0) {
+			this.ended();
+			return;
+		}
+		this.active();
+
+		this.readBuf.flip();
+		processBuffered();
+	}
+
+	/**
+	 * Hand complete chunks in the read buffer to whoever is reading.
+	 * The buffer should be flipped for reading before the call; it is
+	 * ready for writing afterwards.
+	 */
+	private void processBuffered() {
+		while (!this.closed) {
+			if (this.handshake == null && this.center.isReadPaused()) {
+				// Leave the rest in the buffer and stop reading until
+				// resumeReading().
+				this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+				break;
+			}
+			int len = this.nextChunkSize();
+			if (len == 0) {
+				// Nothing expected for now.
+				break;
+			}
+			if (len < 0) {
+				this.ended();
+				return;
+			}
+			if (len > this.readBuf.capacity()) {
+				// The chunk will never fit. Grow the buffer and keep what
+				// we have already got.
+				ByteBuffer bigger = ByteBuffer.wrap(this.pool.acquire(len));
+				bigger.put(this.readBuf);
+				this.pool.release(this.readBuf.array());
+				this.readBuf = bigger;
+				return;
+			}
+			if (this.readBuf.remaining() < len) {
+				break;
+			}
+
+			// The chunk is handed over right from the read buffer.
+			int pos = this.readBuf.position();
+			boolean goon = this.processChunk(this.readBuf.array(),
+					this.readBuf.arrayOffset() + pos, len);
+			this.readBuf.position(pos + len);
+			if (!goon) {
+				this.ended();
+				return;
+			}
+		}
+		if (this.handshake == null) {
+			this.center.endOfBurst();
+		}
+		this.readBuf.compact();
+	}
+
+	private void ended() {
+		if (this.handshake != null) {
+			this.handshake.fail(new EOFException("connection closed during handshake"));
+			return;
+		}
+		this.center.onSessionEnd(this);
+	}
+
+	private void failed(IOException e) {
+		if (this.handshake != null) {
+			this.handshake.fail(e);
+			return;
+		}
+		this.center.onSessionError(this, e);
+	}
+
+	/**
+	 * Close the channel and forget about it. The message center is not
+	 * notified. A handshake still going on fails with a
+	 * ClosedChannelException, on the loop thread, because the caller may
+	 * hold the locks of the message center.
+	 */
+	void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// Nothing we can do here.
+		}
+		final AsyncHandshake h = this.handshake;
+		if (h != null) {
+			this.loop.execute(new Runnable() {
+				public void run() {
+					h.fail(new ClosedChannelException());
+				}
+			});
+		}
+	}
+}
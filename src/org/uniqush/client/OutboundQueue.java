@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A bounded queue of outgoing frames with many producers and a single
+ * consumer.
+ *
+ * Producers encode their commands and never touch the socket. Whenever
+ * there is something in the queue, one drain task is run on the writer
+ * executor, which encrypts and sends the queued frames in the order they
+ * were queued.
+ *
+ * The drain task coalesces frames: it takes as many queued frames as fit
+ * in the byte budget and hands them to the sender at once, so a burst of
+ * small frames costs one gathering write instead of one write each. It
+ * may also hold a small batch back for more frames to show up, up to the
+ * configured maximum delay. The writer is not kept meanwhile: the drain
+ * task ends, and a timer runs it again once the delay is over.
+ */
+class OutboundQueue {
+	/**
+	 * Wait for room in the queue.
+	 */
+	final static int POLICY_BLOCK = 0;
+	/**
+	 * Fail the new command.
+	 */
+	final static int POLICY_FAIL = 1;
+	/**
+	 * Fail the oldest queued command to make room for the new one.
+	 */
+	final static int POLICY_DROP_OLDEST = 2;
+
+	interface Sender {
+		/**
+		 * Encrypt and write the first n frames in one go.
+		 */
+		public void send(byte[][] frames, int n, int connHandlerId) throws InterruptedException, IOException;
+	}
+
+	// Maximum number of frames written at once.
+	private final static int MAX_BATCH_FRAMES = 256;
+
+	private static class Item {
+		byte[] frame;
+		int connHandlerId;
+		CompletableFuture<Void> future;
+
+		Item(byte[] frame, int connHandlerId) {
+			this.frame = frame;
+			this.connHandlerId = connHandlerId;
+			this.future = new CompletableFuture<Void>();
+		}
+	}
+
+	private ConcurrentLinkedQueue<Item> queue;
+	private Semaphore space;
+	private AtomicBoolean draining;
+	private volatile boolean closed;
+
+	private int policy;
+	private Executor writer;
+	private Sender sender;
+	private Runnable drainTask;
+
+	private volatile int maxBatchBytes;
+	private volatile long maxDelayNanos;
+	// Set by the timer when a batch held back is due.
+	private volatile boolean flushDue;
+	private Runnable flushTask;
+
+	// Only used by the drain task. A batch held back for more frames stays
+	// here between two runs of the task.
+	private Item[] batch;
+	private byte[][] batchFrames;
+	private int batchSize;
+	private int batchBytes;
+	private long batchDeadline;
+	private boolean flushScheduled;
+
+	// Runs the flushTask of the queues holding a batch back. Only started
+	// once a queue does.
+	private static ScheduledExecutorService timer;
+
+	public OutboundQueue(int capacity, int policy, Executor writer, Sender sender) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity should be positive");
+		}
+		if (policy != POLICY_BLOCK && policy != POLICY_FAIL && policy != POLICY_DROP_OLDEST) {
+			throw new IllegalArgumentException("unknown policy: " + policy);
+		}
+		this.queue = new ConcurrentLinkedQueue<Item>();
+		this.space = new Semaphore(capacity);
+		this.draining = new AtomicBoolean(false);
+		this.closed = false;
+		this.policy = policy;
+		this.writer = writer;
+		this.sender = sender;
+		this.drainTask = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+		this.flushTask = new Runnable() {
+			public void run() {
+				flushDue = true;
+				schedule();
+			}
+		};
+		this.maxBatchBytes = 64 * 1024;
+		this.maxDelayNanos = 0;
+		this.batch = new Item[MAX_BATCH_FRAMES];
+		this.batchFrames = new byte[MAX_BATCH_FRAMES][];
+		this.batchSize = 0;
+		this.batchBytes = 0;
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "uniqush-flush-timer");
+					th.setDaemon(true);
+					return th;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * @param maxBatchBytes
+	 *            Stop collecting frames for one write once this many bytes
+	 *            are collected.
+	 * @param maxDelayNanos
+	 *            How long the writer may wait for more frames before it
+	 *            writes a batch smaller than maxBatchBytes. 0 means it
+	 *            only takes what is already queued.
+	 */
+	public void setCoalescing(int maxBatchBytes, long maxDelayNanos) {
+		if (maxBatchBytes <= 0 || maxDelayNanos < 0) {
+			throw new IllegalArgumentException("bad coalescing parameters");
+		}
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxDelayNanos = maxDelayNanos;
+	}
+
+	/**
+	 * Queue a frame which is not encrypted yet. Only blocks if the queue
+	 * is full and the policy is POLICY_BLOCK.
+	 *
+	 * @return A future completed once the frame is written to the socket.
+	 */
+	public CompletableFuture<Void> offer(byte[] frame, int connHandlerId) {
+		Item item = new Item(frame, connHandlerId);
+		if (this.closed) {
+			item.future.completeExceptionally(new IOException("connection closed"));
+			return item.future;
+		}
+
+		switch (this.policy) {
+		case POLICY_BLOCK:
+			try {
+				this.space.acquire();
+			} catch (InterruptedException e) {
+				item.future.completeExceptionally(e);
+				return item.future;
+			}
+			break;
+		case POLICY_FAIL:
+			if (!this.space.tryAcquire()) {
+				item.future.completeExceptionally(new IOException("outbound queue is full"));
+				return item.future;
+			}
+			break;
+		case POLICY_DROP_OLDEST:
+			while (!this.space.tryAcquire()) {
+				Item oldest = this.queue.poll();
+				if (oldest != null) {
+					this.space.release();
+					oldest.future.completeExceptionally(new IOException(
+							"dropped from a full outbound queue"));
+				}
+			}
+			break;
+		}
+		this.queue.add(item);
+		schedule();
+		return item.future;
+	}
+
+	private void schedule() {
+		if (!this.draining.compareAndSet(false, true)) {
+			// The running drain task will see the item.
+			return;
+		}
+		try {
+			this.writer.execute(this.drainTask);
+		} catch (RejectedExecutionException e) {
+			// No drain task runs while we hold the flag.
+			IOException err = new IOException("connection closed");
+			failBatch(err);
+			this.draining.set(false);
+			close(err);
+		}
+	}
+
+	private void drain() {
+		do {
+			this.flushDue = false;
+			while (drainBatch()) {
+				// keep going
+			}
+			this.draining.set(false);
+			// Someone may have queued something, or the timer may have
+			// gone off, after our last look but before we cleared the flag.
+		} while ((!this.queue.isEmpty() || this.flushDue)
+				&& this.draining.compareAndSet(false, true));
+	}
+
+	/**
+	 * Add the queued frames to the batch, and send it once it is full or
+	 * has been held back long enough.
+	 *
+	 * @return false if there is nothing more to do for now.
+	 */
+	private boolean drainBatch() {
+		if (this.closed) {
+			failBatch(new IOException("connection closed"));
+		}
+		int budget = this.maxBatchBytes;
+		long delay = this.maxDelayNanos;
+		Item item = null;
+		while (this.batchSize < MAX_BATCH_FRAMES && this.batchBytes < budget
+				&& (item = this.queue.poll()) != null) {
+			this.space.release();
+			if (this.closed) {
+				item.future.completeExceptionally(new IOException("connection closed"));
+				continue;
+			}
+			if (this.batchSize > 0
+					&& item.connHandlerId != this.batch[0].connHandlerId) {
+				// The connection changed. This one starts the next batch.
+				sendBatch();
+			}
+			if (this.batchSize == 0) {
+				this.batchDeadline = System.nanoTime() + delay;
+			}
+			this.batch[this.batchSize] = item;
+			this.batchFrames[this.batchSize] = item.frame;
+			this.batchSize++;
+			this.batchBytes += item.frame.length;
+		}
+		if (this.batchSize == 0) {
+			return false;
+		}
+		if (delay > 0 && this.batchSize < MAX_BATCH_FRAMES
+				&& this.batchBytes < budget) {
+			long left = this.batchDeadline - System.nanoTime();
+			if (left > 0) {
+				// Wait for more frames without keeping the writer.
+				if (!this.flushScheduled) {
+					this.flushScheduled = true;
+					timer().schedule(this.flushTask, left, TimeUnit.NANOSECONDS);
+				}
+				return false;
+			}
+		}
+		sendBatch();
+		return true;
+	}
+
+	private void sendBatch() {
+		Exception err = null;
+		try {
+			this.sender.send(this.batchFrames, this.batchSize, this.batch[0].connHandlerId);
+		} catch (InterruptedException e) {
+			err = e;
+		} catch (IOException e) {
+			err = e;
+		} catch (RuntimeException e) {
+			err = e;
+		}
+		for (int i = 0; i < this.batchSize; i++) {
+			if (err == null) {
+				this.batch[i].future.complete(null);
+			} else {
+				this.batch[i].future.completeExceptionally(err);
+			}
+		}
+		clearBatch();
+	}
+
+	private void failBatch(Exception err) {
+		for (int i = 0; i < this.batchSize; i++) {
+			this.batch[i].future.completeExceptionally(err);
+		}
+		clearBatch();
+	}
+
+	private void clearBatch() {
+		for (int i = 0; i < this.batchSize; i++) {
+			this.batch[i] = null;
+			this.batchFrames[i] = null;
+		}
+		this.batchSize = 0;
+		this.batchBytes = 0;
+		this.flushScheduled = false;
+	}
+
+	/**
+	 * @return Number of queued commands.
+	 */
+	public int size() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Fail everything queued and anything queued afterwards.
+	 */
+	public void close(Exception reason) {
+		boolean wasClosed = this.closed;
+		this.closed = true;
+		Item item = null;
+		while ((item = this.queue.poll()) != null) {
+			this.space.release();
+			item.future.completeExceptionally(reason);
+		}
+		if (!wasClosed && this.draining.compareAndSet(false, true)) {
+			// No drain task is running. A batch held back is ours to fail.
+			// Otherwise the running task fails it, or the timer does.
+			failBatch(reason);
+			this.draining.set(false);
+		}
+	}
+}
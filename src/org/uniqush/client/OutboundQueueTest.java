@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	private static class RecordingSender implements OutboundQueue.Sender {
+		List<Integer> batches = new ArrayList<Integer>();
+		List<byte[]> frames = new ArrayList<byte[]>();
+
+		public void send(byte[][] frames, int n, int connHandlerId) {
+			batches.add(n);
+			for (int i = 0; i < n; i++) {
+				this.frames.add(frames[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testCoalesce() {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingSender sender = new RecordingSender();
+		OutboundQueue q = new OutboundQueue(100, OutboundQueue.POLICY_FAIL, exec, sender);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(q.offer(new byte[] { (byte) i }, 1));
+		}
+		exec.runAll();
+		if (sender.batches.size() != 1 || sender.batches.get(0) != 10) {
+			fail("should write all frames at once: " + sender.batches);
+		}
+		for (int i = 0; i < 10; i++) {
+			if (sender.frames.get(i)[0] != i) {
+				fail("out of order");
+			}
+			if (!futures.get(i).isDone() || futures.get(i).isCompletedExceptionally()) {
+				fail("should be sent");
+			}
+		}
+	}
+
+	@Test
+	public void testByteBudget() {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingSender sender = new RecordingSender();
+		OutboundQueue q = new OutboundQueue(100, OutboundQueue.POLICY_FAIL, exec, sender);
+		q.setCoalescing(30, 0);
+		for (int i = 0; i < 10; i++) {
+			q.offer(new byte[10], 1);
+		}
+		exec.runAll();
+		if (sender.frames.size() != 10) {
+			fail("lost frames");
+		}
+		for (int i = 0; i < sender.batches.size(); i++) {
+			if (sender.batches.get(i) > 3) {
+				fail("batch over budget: " + sender.batches);
+			}
+		}
+	}
+
+	@Test
+	public void testConnectionChange() {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingSender sender = new RecordingSender();
+		OutboundQueue q = new OutboundQueue(100, OutboundQueue.POLICY_FAIL, exec, sender);
+		q.offer(new byte[1], 1);
+		q.offer(new byte[1], 1);
+		q.offer(new byte[1], 2);
+		q.offer(new byte[1], 2);
+		exec.runAll();
+		if (sender.frames.size() != 4) {
+			fail("lost frames");
+		}
+		if (sender.batches.get(0) != 2) {
+			fail("frames of different connections in one batch: " + sender.batches);
+		}
+	}
+
+	@Test
+	public void testDelay() throws InterruptedException {
+		ManualExecutor exec = new ManualExecutor();
+		RecordingSender sender = new RecordingSender();
+		OutboundQueue q = new OutboundQueue(100, OutboundQueue.POLICY_FAIL, exec, sender);
+		q.setCoalescing(30, 50 * 1000 * 1000L);
+		CompletableFuture<Void> first = q.offer(new byte[10], 1);
+		exec.runAll();
+		if (!sender.batches.isEmpty() || first.isDone()) {
+			fail("should wait for more frames");
+		}
+		q.offer(new byte[10], 1);
+		exec.runAll();
+		if (!sender.batches.isEmpty()) {
+			fail("should still wait: " + sender.batches);
+		}
+		// The timer gives the drain task back to the writer.
+		long deadline = System.currentTimeMillis() + 5000;
+		while (exec.pending() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		exec.runAll();
+		if (sender.batches.size() != 1 || sender.batches.get(0) != 2 || !first.isDone()) {
+			fail("should write the batch after the delay: " + sender.batches);
+		}
+
+		// A full batch does not wait.
+		for (int i = 0; i < 3; i++) {
+			q.offer(new byte[10], 1);
+		}
+		exec.runAll();
+		if (sender.batches.size() != 2 || sender.batches.get(1) != 3) {
+			fail("should write a full batch at once: " + sender.batches);
+		}
+	}
+
+	@Test
+	public void testCloseWhileWaiting() {
+		ManualExecutor exec = new ManualExecutor();
+		OutboundQueue q = new OutboundQueue(100, OutboundQueue.POLICY_FAIL, exec,
+				new RecordingSender());
+		q.setCoalescing(30, 60 * 1000 * 1000 * 1000L);
+		CompletableFuture<Void> f = q.offer(new byte[10], 1);
+		exec.runAll();
+		q.close(new IOException("closed"));
+		if (!f.isCompletedExceptionally()) {
+			fail("should fail the frame held back");
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps inbound events in a bounded queue until someone polls them.
+ *
+ * Pass it to MessageCenter.connect() or connectAsync() as the message
+ * handler, then take the events with MessageCenter.poll() or drainTo().
+ * All events are queued, including onClosed() and onError(), so the
+ * pollers see them in order. When the queue is full, the connection stops
+ * reading from the server until it is half empty.
+ */
+public class PollingStage extends InboundStage {
+	private int capacity;
+	private LinkedBlockingQueue<InboundEvent> queue;
+
+	// Whether we paused the reader. Changed under flowLock.
+	private volatile boolean paused;
+	private Object flowLock;
+
+	/**
+	 * @param capacity
+	 *            How many events may wait for a poller.
+	 */
+	public PollingStage(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity should be positive");
+		}
+		this.capacity = capacity;
+		// The reader stops at capacity, but never blocks: the queue itself
+		// is not bounded.
+		this.queue = new LinkedBlockingQueue<InboundEvent>();
+		this.paused = false;
+		this.flowLock = new Object();
+	}
+
+	@Override
+	protected void enqueue(InboundEvent e) {
+		this.queue.add(e);
+		if (!this.paused && this.queue.size() >= this.capacity) {
+			synchronized (this.flowLock) {
+				if (!this.paused && this.queue.size() >= this.capacity) {
+					this.paused = true;
+					pauseReading();
+				}
+			}
+		}
+	}
+
+	private void taken() {
+		if (this.paused && this.queue.size() <= this.capacity / 2) {
+			synchronized (this.flowLock) {
+				if (this.paused && this.queue.size() <= this.capacity / 2) {
+					this.paused = false;
+					resumeReading();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the next event, waiting up to the timeout for one.
+	 *
+	 * @return null on timeout.
+	 */
+	public InboundEvent poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		InboundEvent e = this.queue.poll(timeout, unit);
+		if (e != null) {
+			taken();
+		}
+		return e;
+	}
+
+	/**
+	 * Move up to max waiting events into c without waiting.
+	 *
+	 * @return Number of events moved.
+	 */
+	public int drainTo(Collection<? super InboundEvent> c, int max) {
+		int n = this.queue.drainTo(c, max);
+		if (n > 0) {
+			taken();
+		}
+		return n;
+	}
+
+	/**
+	 * @return Number of events waiting.
+	 */
+	public int size() {
+		return this.queue.size();
+	}
+
+	public int capacity() {
+		return this.capacity;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollingStageTest {
+
+	@Test
+	public void testPollAndDrain() throws InterruptedException {
+		PollingStage stage = new PollingStage(4);
+		ReadGate gate = new ReadGate();
+		stage.attach(gate);
+		for (int i = 0; i < 4; i++) {
+			stage.onMessageFromServer("s", "u", "" + i, new Message());
+		}
+		if (!gate.isPaused()) {
+			fail("should stop reading when full");
+		}
+		InboundEvent e = stage.poll(1, TimeUnit.SECONDS);
+		if (e == null || !e.getId().equals("0")) {
+			fail("bad event");
+		}
+		if (!gate.isPaused()) {
+			fail("should wait until half empty");
+		}
+		List<InboundEvent> batch = new ArrayList<InboundEvent>();
+		if (stage.drainTo(batch, 100) != 3 || !batch.get(2).getId().equals("3")) {
+			fail("bad batch");
+		}
+		if (gate.isPaused()) {
+			fail("should read again");
+		}
+		if (stage.poll(10, TimeUnit.MILLISECONDS) != null) {
+			fail("should time out");
+		}
+	}
+}
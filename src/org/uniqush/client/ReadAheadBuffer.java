@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads from a stream as much as it has and hands out the bytes chunk by
+ * chunk, so that a burst of small frames costs one read() instead of two
+ * per frame. Whatever is left of a partial frame stays in the buffer for
+ * the next read.
+ *
+ * Not thread safe.
+ */
+class ReadAheadBuffer {
+	private final static int INITIAL_SIZE = 16 * 1024;
+
+	private BufferPool pool;
+	private byte[] buf;
+	// Unconsumed bytes are buf[pos, limit).
+	private int pos;
+	private int limit;
+
+	public ReadAheadBuffer(BufferPool pool) {
+		this.pool = pool;
+		this.buf = null;
+		this.pos = 0;
+		this.limit = 0;
+	}
+
+	/**
+	 * Make sure there are at least n buffered bytes, reading from the
+	 * stream if needed.
+	 *
+	 * @return false if the stream ended before that.
+	 */
+	public boolean fill(InputStream istream, int n) throws IOException {
+		if (this.limit - this.pos >= n) {
+			return true;
+		}
+		if (this.buf == null) {
+			this.buf = this.pool.acquire(Math.max(n, INITIAL_SIZE));
+		}
+		if (this.buf.length - this.pos < n) {
+			// Not enough room after pos. Move what we have to the front,
+			// or into a larger buffer.
+			byte[] dst = this.buf;
+			if (dst.length < n) {
+				dst = this.pool.acquire(n);
+			}
+			System.arraycopy(this.buf, this.pos, dst, 0, this.limit - this.pos);
+			if (dst != this.buf) {
+				this.pool.release(this.buf);
+				this.buf = dst;
+			}
+			this.limit -= this.pos;
+			this.pos = 0;
+		}
+		while (this.limit - this.pos < n) {
+			int i = istream.read(this.buf, this.limit, this.buf.length - this.limit);
+			if (i < 0) {
+				return false;
+			}
+			this.limit += i;
+		}
+		return true;
+	}
+
+	public byte[] array() {
+		return this.buf;
+	}
+
+	/**
+	 * @return Offset of the first unconsumed byte in array().
+	 */
+	public int position() {
+		return this.pos;
+	}
+
+	public int available() {
+		return this.limit - this.pos;
+	}
+
+	public void skip(int n) {
+		this.pos += n;
+	}
+
+	/**
+	 * Drop everything buffered, e.g. when switching to another stream.
+	 */
+	public void clear() {
+		this.pos = 0;
+		this.limit = 0;
+	}
+
+	/**
+	 * Give the buffer back to the pool if nothing is buffered. The next
+	 * fill() gets another one.
+	 */
+	public void trim() {
+		if (this.buf != null && this.limit == this.pos) {
+			this.pool.release(this.buf);
+			this.buf = null;
+			this.pos = 0;
+			this.limit = 0;
+		}
+	}
+
+	/**
+	 * Give the buffer back to the pool. The object should not be used
+	 * after this.
+	 */
+	public void release() {
+		this.pool.release(this.buf);
+		this.buf = null;
+	}
+}
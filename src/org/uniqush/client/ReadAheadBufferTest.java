@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ReadAheadBufferTest {
+
+	@Test
+	public void testManyChunksPerRead() throws IOException {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		ByteArrayInputStream istream = new ByteArrayInputStream(data);
+		ReadAheadBuffer in = new ReadAheadBuffer(new BufferPool(1));
+		for (int i = 0; i < 10; i++) {
+			if (!in.fill(istream, 10)) {
+				fail("unexpected end");
+			}
+			if (in.array()[in.position()] != (byte) (i * 10)) {
+				fail("bad chunk at " + i);
+			}
+			in.skip(10);
+		}
+		if (istream.available() != 0 || in.available() != 0) {
+			fail("should have consumed everything");
+		}
+		if (in.fill(istream, 1)) {
+			fail("should see the end of the stream");
+		}
+	}
+
+	@Test
+	public void testLargeChunk() throws IOException {
+		byte[] data = new byte[70000];
+		data[69999] = 42;
+		ReadAheadBuffer in = new ReadAheadBuffer(new BufferPool(1));
+		ByteArrayInputStream istream = new ByteArrayInputStream(data);
+		if (!in.fill(istream, 3)) {
+			fail("unexpected end");
+		}
+		in.skip(3);
+		if (!in.fill(istream, 69997)) {
+			fail("unexpected end");
+		}
+		if (in.array()[in.position() + 69996] != 42) {
+			fail("partial chunk not carried over");
+		}
+	}
+
+	@Test
+	public void testTrim() throws IOException {
+		byte[] data = new byte[30];
+		data[20] = 7;
+		BufferPool pool = new BufferPool(1);
+		ByteArrayInputStream istream = new ByteArrayInputStream(data, 0, 15);
+		ReadAheadBuffer in = new ReadAheadBuffer(pool);
+		if (!in.fill(istream, 10)) {
+			fail("unexpected end");
+		}
+		in.skip(10);
+		in.trim();
+		if (pool.getReleases() != 0 || in.available() != 5) {
+			fail("trimmed a buffer with data in it");
+		}
+		in.skip(5);
+		in.trim();
+		if (pool.getIdle() != 1) {
+			fail("the buffer should be back in the pool");
+		}
+		istream = new ByteArrayInputStream(data, 15, 15);
+		if (!in.fill(istream, 15) || in.array()[in.position() + 5] != 7) {
+			fail("bad read after trim");
+		}
+	}
+}
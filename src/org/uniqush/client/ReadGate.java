@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets the consumer of inbound commands stop the reader of a connection
+ * when it falls behind.
+ *
+ * The blocking reader waits in awaitOpen() before each chunk; an event
+ * loop checks isPaused() and stops reading the socket until the gate's
+ * resume listener is called.
+ *
+ * Several consumers may share a gate. It stays closed until each pause()
+ * is matched by a resume().
+ */
+class ReadGate {
+	private ReentrantLock lock;
+	private Condition opened;
+	// Number of pause() not matched by resume() yet.
+	private int pausers;
+	private boolean closed;
+	private volatile Runnable onResume;
+
+	public ReadGate() {
+		this.lock = new ReentrantLock();
+		this.opened = this.lock.newCondition();
+		this.pausers = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * @param r
+	 *            Run (on the thread calling resume()) whenever the gate
+	 *            opens again.
+	 */
+	void setResumeListener(Runnable r) {
+		this.onResume = r;
+	}
+
+	void pause() {
+		this.lock.lock();
+		try {
+			if (!this.closed) {
+				this.pausers++;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	void resume() {
+		this.lock.lock();
+		try {
+			if (this.pausers == 0) {
+				return;
+			}
+			this.pausers--;
+			if (this.pausers > 0) {
+				return;
+			}
+			this.opened.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		Runnable r = this.onResume;
+		if (r != null) {
+			r.run();
+		}
+	}
+
+	boolean isPaused() {
+		this.lock.lock();
+		try {
+			return this.pausers > 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Block until the gate is open.
+	 */
+	void awaitOpen() throws InterruptedException {
+		this.lock.lock();
+		try {
+			while (this.pausers > 0) {
+				this.opened.await();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Undo close() for a new connection.
+	 */
+	void reopen() {
+		this.lock.lock();
+		try {
+			this.closed = false;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Open the gate until reopen(), e.g. when the connection is closed.
+	 */
+	void close() {
+		this.lock.lock();
+		try {
+			this.closed = true;
+			this.pausers = 0;
+			this.opened.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.nio.charset.Charset;
+
+/**
+ * Turns the UTF-8 bytes of the strings which keep coming back on a
+ * connection (header keys, service and user names) into the same String
+ * instance each time, instead of a new one per command.
+ *
+ * The bytes are looked up directly, so nothing is allocated when the
+ * string is known. The table is a small direct-mapped cache: a string
+ * whose slot is taken replaces the one in it, which bounds its size.
+ *
+ * It is safe to use from several threads. The entries never change, so
+ * the worst a race does is to miss a string which was just added.
+ */
+class StringTable {
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Longer strings are not worth keeping.
+	final static int MAX_LENGTH = 64;
+
+	private static class Entry {
+		final int hash;
+		final byte[] bytes;
+		final String value;
+
+		Entry(int hash, byte[] bytes, String value) {
+			this.hash = hash;
+			this.bytes = bytes;
+			this.value = value;
+		}
+
+		boolean matches(byte[] data, int offset, int length) {
+			if (this.bytes.length != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (this.bytes[i] != data[offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final Entry[] slots;
+	private final int mask;
+
+	/**
+	 * @param size
+	 *            Number of slots. Rounded up to a power of two.
+	 */
+	public StringTable(int size) {
+		int n = 1;
+		while (n < size) {
+			n <<= 1;
+		}
+		this.slots = new Entry[n];
+		this.mask = n - 1;
+	}
+
+	private static int hash(byte[] data, int offset, int length) {
+		int h = length;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + data[offset + i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return The string of the UTF-8 bytes.
+	 */
+	public String get(byte[] data, int offset, int length) {
+		if (length > MAX_LENGTH) {
+			return new String(data, offset, length, UTF_8);
+		}
+		int h = hash(data, offset, length);
+		int i = h & this.mask;
+		Entry e = this.slots[i];
+		if (e != null && e.hash == h && e.matches(data, offset, length)) {
+			return e.value;
+		}
+		byte[] bytes = new byte[length];
+		System.arraycopy(data, offset, bytes, 0, length);
+		String s = new String(bytes, UTF_8);
+		this.slots[i] = new Entry(h, bytes, s);
+		return s;
+	}
+}
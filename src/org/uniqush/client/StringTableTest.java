@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class StringTableTest {
+
+	@Test
+	public void testSameInstance() {
+		StringTable table = new StringTable(16);
+		byte[] a = "xxalicexx".getBytes(Charset.forName("UTF-8"));
+		byte[] b = "alice".getBytes(Charset.forName("UTF-8"));
+		String s1 = table.get(a, 2, 5);
+		String s2 = table.get(b, 0, b.length);
+		assertEquals("alice", s1);
+		assertTrue(s1 == s2);
+		String s3 = table.get(b, 0, 4);
+		assertEquals("alic", s3);
+
+		byte[] utf8 = "h\u00e9llo".getBytes(Charset.forName("UTF-8"));
+		assertEquals("h\u00e9llo", table.get(utf8, 0, utf8.length));
+
+		byte[] longName = new byte[StringTable.MAX_LENGTH + 1];
+		for (int i = 0; i < longName.length; i++) {
+			longName[i] = 'a';
+		}
+		if (table.get(longName, 0, longName.length) == table.get(longName, 0, longName.length)) {
+			fail("long strings should not be kept");
+		}
+	}
+
+	@Test
+	public void testBounded() {
+		StringTable table = new StringTable(4);
+		for (int i = 0; i < 100; i++) {
+			byte[] b = ("name" + i).getBytes(Charset.forName("UTF-8"));
+			assertEquals("name" + i, table.get(b, 0, b.length));
+		}
+	}
+
+	@Test
+	public void testDecodeWithNames() {
+		StringTable table = new StringTable(16);
+		Command[] cmds = new Command[2];
+		for (int i = 0; i < cmds.length; i++) {
+			Message msg = new Message();
+			msg.put("title", "t" + i);
+			Command cmd = new Command(Command.CMD_FWD, msg);
+			cmd.AppendParameter("bob");
+			cmd.AppendParameter("service");
+			cmd.AppendParameter("id" + i);
+			byte[] data = cmd.marshal();
+			cmds[i] = Command.decodeLazily(data, 0, data.length, table);
+		}
+		assertTrue(cmds[0].getParameter(0) == cmds[1].getParameter(0));
+		assertTrue(cmds[0].getParameter(1) == cmds[1].getParameter(1));
+		assertEquals("id1", cmds[1].getParameter(2));
+		String k0 = cmds[0].getMessage().getHeader().keySet().iterator().next();
+		String k1 = cmds[1].getMessage().getHeader().keySet().iterator().next();
+		assertTrue(k0 == k1);
+		assertEquals("t1", cmds[1].getMessage().get("title"));
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls a MessageHandler on several threads while keeping the order of
+ * each conversation.
+ *
+ * Events are spread over N lanes. Messages and digests from a user go to
+ * the lane picked by the hash of the sender's service and name, and those
+ * from the server by the hash of the message id. Each lane is a
+ * {@link DispatchStage}: it calls the handler for one event at a time, in
+ * order, so events of the same conversation are never reordered while
+ * independent conversations are handled in parallel. The handler must be
+ * thread safe.
+ *
+ * onCloseStart(), onClosed() and onError() are called once, after every
+ * lane has handled the events received before them, and before any lane
+ * handles the events received after them. A lane waiting for the others
+ * does not hold a thread of the executor. A lane whose executor refused
+ * to run it does not hold the others back.
+ *
+ * The order above does not apply to onError() calls for an exception
+ * thrown by the handler, or for a lane whose executor is gone. The lane
+ * which caught the exception makes the call at once, while the other lanes
+ * go on.
+ *
+ * The reader is paused while any lane is above its high watermark.
+ */
+public class StripedDispatchStage extends InboundStage {
+	private DispatchStage[] lanes;
+	// Null if the executor is not ours.
+	private ExecutorService ownExecutor;
+	// Set by onClosed(). Later events are dropped. Guarded by enqueueLock.
+	private boolean closed;
+	// Every lane gets the barriers in the same order.
+	private Object enqueueLock;
+
+	/**
+	 * Holds every lane which gets to it, until the last one does. That one
+	 * delivers the event and lets the others go on.
+	 */
+	private class BarrierEvent extends InboundEvent {
+		private InboundEvent event;
+		private AtomicInteger remaining;
+		private ConcurrentLinkedQueue<DispatchStage> held;
+
+		BarrierEvent(InboundEvent event, int nrLanes) {
+			super(event.getType());
+			this.event = event;
+			this.remaining = new AtomicInteger(nrLanes);
+			this.held = new ConcurrentLinkedQueue<DispatchStage>();
+		}
+
+		@Override
+		boolean holdsLane(DispatchStage lane) {
+			// Added before counting, so the last lane finds it.
+			this.held.add(lane);
+			if (this.remaining.decrementAndGet() > 0) {
+				return true;
+			}
+			this.held.remove(lane);
+			return false;
+		}
+
+		@Override
+		void skipLane(MessageHandler handler) {
+			// No lane is left to deliver it if this one was the last.
+			if (this.remaining.decrementAndGet() == 0) {
+				deliverTo(handler);
+			}
+		}
+
+		@Override
+		public void deliverTo(MessageHandler handler) {
+			try {
+				this.event.deliverTo(handler);
+			} finally {
+				if (getType() == InboundEvent.CLOSED) {
+					// Nothing comes after onClosed(), so the other lanes
+					// stay where they are.
+					if (ownExecutor != null) {
+						ownExecutor.shutdown();
+					}
+				} else {
+					DispatchStage lane = null;
+					while ((lane = this.held.poll()) != null) {
+						lane.resumeDrain();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param handler
+	 *            Receives the events. Called from several threads at once.
+	 * @param nrLanes
+	 *            Number of lanes.
+	 * @param executor
+	 *            Where the lanes run. Should have at least nrLanes threads
+	 *            to get all of them running at once.
+	 * @param highWatermark
+	 *            Stop reading once a lane has this many events waiting.
+	 * @param lowWatermark
+	 *            Read again once the lane is down to this many events.
+	 */
+	public StripedDispatchStage(MessageHandler handler, int nrLanes,
+			Executor executor, int highWatermark, int lowWatermark) {
+		if (nrLanes <= 0) {
+			throw new IllegalArgumentException("need at least one lane");
+		}
+		this.enqueueLock = new Object();
+		this.lanes = new DispatchStage[nrLanes];
+		for (int i = 0; i < nrLanes; i++) {
+			this.lanes[i] = new DispatchStage(handler, executor,
+					highWatermark, lowWatermark);
+		}
+	}
+
+	/**
+	 * Run the lanes on a pool of nrLanes daemon threads of the stage's
+	 * own. The pool is shut down once onClosed() is handled, so the stage
+	 * serves one connection.
+	 */
+	public StripedDispatchStage(MessageHandler handler, int nrLanes) {
+		this(handler, nrLanes, lanePool(nrLanes));
+	}
+
+	private StripedDispatchStage(MessageHandler handler, int nrLanes,
+			ExecutorService pool) {
+		this(handler, nrLanes, pool, 1024, 256);
+		this.ownExecutor = pool;
+	}
+
+	private static ExecutorService lanePool(int nrLanes) {
+		if (nrLanes <= 0) {
+			throw new IllegalArgumentException("need at least one lane");
+		}
+		return Executors.newFixedThreadPool(nrLanes, new ThreadFactory() {
+			private AtomicInteger n = new AtomicInteger(0);
+
+			public Thread newThread(Runnable r) {
+				Thread th = new Thread(r, "uniqush-lane-" + n.getAndIncrement());
+				th.setDaemon(true);
+				return th;
+			}
+		});
+	}
+
+	@Override
+	void attach(ReadGate gate) {
+		super.attach(gate);
+		// The lanes share the gate. It opens once none of them is full.
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i].attach(gate);
+		}
+	}
+
+	private static int hash(String s) {
+		if (s == null) {
+			return 0;
+		}
+		return s.hashCode();
+	}
+
+	/**
+	 * @return The lane handling the event.
+	 */
+	int laneOf(InboundEvent e) {
+		int h = 0;
+		switch (e.getType()) {
+		case InboundEvent.MESSAGE_FROM_USER:
+		case InboundEvent.DIGEST_FROM_USER:
+			h = 31 * hash(e.getSrcService()) + hash(e.getSrcUser());
+			break;
+		default:
+			h = hash(e.getId());
+			break;
+		}
+		// Spread the bits a little. String hashes of similar names differ
+		// mostly in the low bits.
+		h ^= (h >>> 16);
+		return (h & 0x7FFFFFFF) % this.lanes.length;
+	}
+
+	@Override
+	protected void enqueue(InboundEvent e) {
+		synchronized (this.enqueueLock) {
+			if (this.closed) {
+				return;
+			}
+			if (e.getType() == InboundEvent.CLOSED) {
+				this.closed = true;
+			}
+			switch (e.getType()) {
+			case InboundEvent.CLOSE_START:
+			case InboundEvent.CLOSED:
+			case InboundEvent.ERROR:
+				BarrierEvent b = new BarrierEvent(e, this.lanes.length);
+				for (int i = 0; i < this.lanes.length; i++) {
+					this.lanes[i].enqueue(b);
+				}
+				return;
+			}
+			this.lanes[laneOf(e)].enqueue(e);
+		}
+	}
+
+	public int nrLanes() {
+		return this.lanes.length;
+	}
+
+	/**
+	 * @return The lane, to look at its statistics.
+	 */
+	public DispatchStage getLane(int i) {
+		return this.lanes[i];
+	}
+
+	/**
+	 * @return Number of events waiting in all lanes.
+	 */
+	public int getDepth() {
+		int n = 0;
+		for (int i = 0; i < this.lanes.length; i++) {
+			n += this.lanes[i].getDepth();
+		}
+		return n;
+	}
+
+	/**
+	 * @return Number of events taken off the queues of all lanes. Each
+	 *         close or error event counts once per lane.
+	 */
+	public long getDispatched() {
+		long n = 0;
+		for (int i = 0; i < this.lanes.length; i++) {
+			n += this.lanes[i].getDispatched();
+		}
+		return n;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedDispatchStageTest {
+
+	private static class RecordingHandler implements MessageHandler {
+		List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch closed = new CountDownLatch(1);
+
+		public void onMessageFromServer(String dstService, String dstUser,
+				String id, Message msg) {
+			events.add("server:" + id);
+		}
+
+		public void onMessageFromUser(String dstService, String dstUser,
+				String srcService, String srcUser, String id, Message msg) {
+			events.add(srcUser + ":" + id);
+		}
+
+		public void onMessageDigestFromServer(boolean online,
+				String dstService, String dstUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onMessageDigestFromUser(boolean online,
+				String dstService, String dstUser, String srcService,
+				String srcUser, int size, String id,
+				Map<String, String> parameters) {
+		}
+
+		public void onCloseStart() {
+		}
+
+		public void onClosed() {
+			events.add("closed");
+			closed.countDown();
+		}
+
+		public void onError(Exception e) {
+			events.add("error");
+		}
+	}
+
+	@Test
+	public void testPerSenderOrder() throws InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		StripedDispatchStage stage = new StripedDispatchStage(h, 4);
+		String[] senders = { "alice", "bob", "carol", "dave", "eve" };
+		for (int i = 0; i < 100; i++) {
+			for (int j = 0; j < senders.length; j++) {
+				stage.onMessageFromUser("s", "me", "s", senders[j], "" + i, new Message());
+			}
+		}
+		stage.onClosed();
+		if (!h.closed.await(10, TimeUnit.SECONDS)) {
+			fail("onClosed() not called");
+		}
+		List<String> events = new ArrayList<String>(h.events);
+		if (events.size() != 501 || !events.get(500).equals("closed")) {
+			fail("onClosed() should be called once, after everything else");
+		}
+		for (int j = 0; j < senders.length; j++) {
+			int next = 0;
+			for (int i = 0; i < 500; i++) {
+				String e = events.get(i);
+				if (e.startsWith(senders[j] + ":")) {
+					if (!e.equals(senders[j] + ":" + next)) {
+						fail("out of order: " + e);
+					}
+					next++;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSameLane() {
+		StripedDispatchStage stage = new StripedDispatchStage(new RecordingHandler(), 8);
+		InboundEvent a = InboundEvent.messageFromUser("s", "me", "s", "alice", "1", null);
+		InboundEvent b = InboundEvent.messageFromUser("s", "me", "s", "alice", "2", null);
+		if (stage.laneOf(a) != stage.laneOf(b)) {
+			fail("one sender should stay on one lane");
+		}
+	}
+
+	@Test
+	public void testBarrier() throws InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		// Fewer threads than lanes: a lane waiting at the barrier must not
+		// keep the thread.
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		StripedDispatchStage stage = new StripedDispatchStage(h, 4, exec, 1024, 256);
+		String[] senders = { "alice", "bob", "carol", "dave", "eve" };
+		for (int i = 0; i < 50; i++) {
+			stage.onMessageFromUser("s", "me", "s", senders[i % senders.length], "a" + i, new Message());
+		}
+		stage.onError(new Exception("oops"));
+		for (int i = 0; i < 50; i++) {
+			stage.onMessageFromUser("s", "me", "s", senders[i % senders.length], "b" + i, new Message());
+		}
+		stage.onClosed();
+		stage.onMessageFromUser("s", "me", "s", "alice", "late", new Message());
+		if (!h.closed.await(10, TimeUnit.SECONDS)) {
+			fail("onClosed() not called");
+		}
+		exec.shutdown();
+		exec.awaitTermination(10, TimeUnit.SECONDS);
+		List<String> events = new ArrayList<String>(h.events);
+		if (events.size() != 102 || !events.get(50).equals("error")
+				|| !events.get(101).equals("closed")) {
+			fail("bad barrier: " + events);
+		}
+		for (int i = 0; i < 50; i++) {
+			if (!events.get(i).contains(":a")) {
+				fail("received after the error: " + events.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentBarriers() throws InterruptedException {
+		ExecutorService exec = Executors.newFixedThreadPool(8);
+		try {
+			for (int n = 0; n < 200; n++) {
+				RecordingHandler h = new RecordingHandler();
+				final StripedDispatchStage stage = new StripedDispatchStage(h, 8, exec, 1024, 256);
+				final CountDownLatch go = new CountDownLatch(1);
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						try {
+							go.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						stage.onError(new Exception("oops"));
+					}
+				});
+				reader.start();
+				go.countDown();
+				stage.onCloseStart();
+				stage.onClosed();
+				reader.join();
+				if (!h.closed.await(10, TimeUnit.SECONDS)) {
+					fail("lanes stuck at the barriers");
+				}
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailedLanes() {
+		RecordingHandler h = new RecordingHandler();
+		Executor refusing = new Executor() {
+			public void execute(Runnable r) {
+				throw new RejectedExecutionException("gone");
+			}
+		};
+		StripedDispatchStage stage = new StripedDispatchStage(h, 4, refusing, 1024, 256);
+		stage.onMessageFromUser("s", "me", "s", "alice", "1", new Message());
+		stage.onClosed();
+		if (h.closed.getCount() != 0) {
+			fail("onClosed() should not wait for failed lanes");
+		}
+	}
+
+	@Test
+	public void testHandlerException() throws InterruptedException {
+		RecordingHandler h = new RecordingHandler() {
+			public void onMessageFromUser(String dstService, String dstUser,
+					String srcService, String srcUser, String id, Message msg) {
+				if (id.equals("bad")) {
+					throw new IllegalStateException("bad message");
+				}
+				super.onMessageFromUser(dstService, dstUser, srcService, srcUser, id, msg);
+			}
+		};
+		StripedDispatchStage stage = new StripedDispatchStage(h, 4);
+		stage.onMessageFromUser("s", "me", "s", "bob", "bad", new Message());
+		stage.onMessageFromUser("s", "me", "s", "bob", "1", new Message());
+		stage.onClosed();
+		if (!h.closed.await(10, TimeUnit.SECONDS)) {
+			fail("onClosed() not called");
+		}
+		List<String> events = new ArrayList<String>(h.events);
+		if (events.size() != 3 || !events.get(0).equals("error")
+				|| !events.get(1).equals("bob:1")) {
+			fail("the lane should report the exception and go on: " + events);
+		}
+	}
+}
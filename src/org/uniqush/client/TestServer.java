@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.iq80.snappy.Snappy;
+import org.uniqush.diffiehellman.DHGroup;
+import org.uniqush.diffiehellman.DHPrivateKey;
+import org.uniqush.diffiehellman.DHPublicKey;
+
+/**
+ * A server for the tests, on a local port. It does the handshake like
+ * uniqush-conn, sends a few messages, and then echoes the messages it
+ * gets. Each connection has a thread.
+ */
+class TestServer implements Runnable {
+	private static KeyPair keys;
+
+	private ServerSocket serverSocket;
+	// Number of messages sent after the handshake.
+	private int burst;
+	// If true, connections are accepted but nothing is sent.
+	private boolean silent;
+	private List<Socket> sockets;
+
+	TestServer(int burst, boolean silent) throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.burst = burst;
+		this.silent = silent;
+		this.sockets = new CopyOnWriteArrayList<Socket>();
+		Thread th = new Thread(this, "test-server");
+		th.setDaemon(true);
+		th.start();
+	}
+
+	int port() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	void close() throws IOException {
+		this.serverSocket.close();
+		for (Socket s : this.sockets) {
+			s.close();
+		}
+	}
+
+	private static synchronized KeyPair keys() throws Exception {
+		if (keys == null) {
+			KeyPairGenerator g = KeyPairGenerator.getInstance("RSA");
+			g.initialize(2048);
+			keys = g.generateKeyPair();
+		}
+		return keys;
+	}
+
+	static CredentialProvider credentials() throws Exception {
+		final RSAPublicKey pub = (RSAPublicKey) keys().getPublic();
+		return new CredentialProvider() {
+			public String getToken(String service, String username) {
+				return "token";
+			}
+
+			public RSAPublicKey getPublicKey(String host, int port) {
+				return pub;
+			}
+		};
+	}
+
+	public void run() {
+		while (true) {
+			final Socket s;
+			try {
+				s = this.serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			this.sockets.add(s);
+			if (this.silent) {
+				continue;
+			}
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					try {
+						new Connection(s).serve();
+					} catch (Exception e) {
+						// The client is gone.
+					} finally {
+						try {
+							s.close();
+						} catch (IOException e) {
+							// Already closed.
+						}
+					}
+				}
+			}, "test-server-connection");
+			th.setDaemon(true);
+			th.start();
+		}
+	}
+
+	/**
+	 * Called after the handshake, before the messages are sent.
+	 * 
+	 * @return false to close the connection.
+	 */
+	protected boolean onAuthenticated(Connection conn) throws Exception {
+		return true;
+	}
+
+	class Connection {
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private Cipher encrypter;
+		private Cipher decrypter;
+		private Mac encryptHmac;
+		private Mac decryptHmac;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = socket.getInputStream();
+			this.out = socket.getOutputStream();
+		}
+
+		void serve() throws Exception {
+			DHGroup group = DHGroup.getGroup(14);
+			DHPrivateKey priv = group.generatePrivateKey(new SecureRandom());
+			byte[] hello = new byte[1 + ConnectionHandler.DH_PUBLIC_KEY_LENGTH];
+			hello[0] = 1;
+			byte[] pub = priv.getPublicKey().toByteArray(ConnectionHandler.DH_PUBLIC_KEY_LENGTH);
+			System.arraycopy(pub, 0, hello, 1, pub.length);
+			Signature sign = Signature.getInstance("RSASSA-PSS");
+			sign.setParameter(new PSSParameterSpec("SHA-256", "MGF1",
+					MGF1ParameterSpec.SHA256, 32, 1));
+			sign.initSign(keys().getPrivate());
+			sign.update(hello);
+			byte[] nonce = new byte[32];
+			new SecureRandom().nextBytes(nonce);
+			this.out.write(hello);
+			this.out.write(sign.sign());
+			this.out.write(nonce);
+
+			byte[] reply = new byte[1 + ConnectionHandler.DH_PUBLIC_KEY_LENGTH + 32];
+			readFully(reply);
+			byte[] clientPub = Arrays.copyOfRange(reply, 1, 1 + ConnectionHandler.DH_PUBLIC_KEY_LENGTH);
+			byte[] masterKey = group.computeKey(new DHPublicKey(clientPub), priv);
+			KeySet ks = new KeySet(masterKey, nonce);
+			IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+			this.encrypter = Cipher.getInstance("AES/CTR/NoPadding");
+			this.encrypter.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(ks.serverEncrKey, "AES"), iv);
+			this.decrypter = Cipher.getInstance("AES/CTR/NoPadding");
+			this.decrypter.init(Cipher.DECRYPT_MODE, new SecretKeySpec(ks.clientEncrKey, "AES"), iv);
+			this.encryptHmac = Mac.getInstance("HmacSHA256");
+			this.encryptHmac.init(new SecretKeySpec(ks.serverAuthKey, "HmacSHA256"));
+			this.decryptHmac = Mac.getInstance("HmacSHA256");
+			this.decryptHmac.init(new SecretKeySpec(ks.clientAuthKey, "HmacSHA256"));
+
+			if (readCommand().getType() != Command.CMD_AUTH) {
+				throw new IOException("no AUTH");
+			}
+			send(new Command(Command.CMD_AUTHOK, null));
+			if (!onAuthenticated(this)) {
+				return;
+			}
+			for (int i = 0; i < burst; i++) {
+				Message msg = new Message();
+				msg.put("k", "v" + i);
+				msg.put(("body" + i).getBytes());
+				Command cmd = new Command(Command.CMD_DATA, msg);
+				cmd.AppendParameter("id" + i);
+				send(cmd);
+			}
+			while (true) {
+				Command cmd = readCommand();
+				if (cmd.getType() == Command.CMD_DATA) {
+					send(cmd);
+				}
+			}
+		}
+
+		private void readFully(byte[] buf) throws IOException {
+			int n = 0;
+			while (n < buf.length) {
+				int r = this.in.read(buf, n, buf.length - n);
+				if (r < 0) {
+					throw new EOFException();
+				}
+				n += r;
+			}
+		}
+
+		private Command readCommand() throws Exception {
+			byte[] prefix = new byte[2];
+			readFully(prefix);
+			int len = (prefix[0] & 0xFF) | ((prefix[1] & 0xFF) << 8);
+			byte[] data = new byte[len + 32];
+			readFully(data);
+			this.decryptHmac.reset();
+			this.decryptHmac.update(prefix);
+			this.decryptHmac.update(data, 0, len);
+			if (!Arrays.equals(this.decryptHmac.doFinal(), Arrays.copyOfRange(data, len, len + 32))) {
+				throw new IOException("bad hmac");
+			}
+			byte[] plain = this.decrypter.update(data, 0, len);
+			int padding = (plain[0] & 0xFF) >> 3;
+			byte[] cmd = Arrays.copyOfRange(plain, 1, plain.length - padding);
+			if ((plain[0] & 1) != 0) {
+				cmd = Snappy.uncompress(cmd, 0, cmd.length);
+			}
+			return new Command(cmd);
+		}
+
+		void send(Command cmd) throws Exception {
+			byte[] data = cmd.marshal();
+			int padding = ((data.length + 16) / 16) * 16 - (data.length + 1);
+			byte[] plain = new byte[data.length + 1 + padding];
+			plain[0] = (byte) (padding << 3);
+			System.arraycopy(data, 0, plain, 1, data.length);
+			byte[] cipher = this.encrypter.update(plain);
+			byte[] prefix = { (byte) cipher.length, (byte) (cipher.length >> 8) };
+			this.encryptHmac.reset();
+			this.encryptHmac.update(prefix);
+			this.encryptHmac.update(cipher);
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			frame.write(prefix);
+			frame.write(cipher);
+			frame.write(this.encryptHmac.doFinal());
+			synchronized (this) {
+				this.out.write(frame.toByteArray());
+			}
+		}
+
+		void close() throws IOException {
+			this.socket.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Nan Deng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.uniqush.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of JDK 21 and later.
+ *
+ * The library is still built for older JDKs (and Android), so the API is
+ * looked up by reflection.
+ */
+public final class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the running JVM supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            Threads are named prefix0, prefix1, ...
+	 * @return A factory creating (unstarted) virtual threads.
+	 * @throws UnsupportedOperationException
+	 *             if the JVM does not support virtual threads.
+	 */
+	public static ThreadFactory factory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			// Go through the public interface. The builder itself is
+			// an inaccessible class.
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("virtual threads need JDK 21 or later");
+		} catch (ClassNotFoundException e) {
+			throw new UnsupportedOperationException("virtual threads need JDK 21 or later");
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("cannot create virtual threads", e);
+		}
+	}
+}
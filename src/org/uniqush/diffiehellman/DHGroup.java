@@ -6,27 +6,67 @@ import java.util.Random;
 
 
 public class DHGroup {
-	protected BigInteger modulus;
-	protected BigInteger generator;
+	// The smallest exponent RFC 3526 gives for group 14.
+	public final static int MIN_EXPONENT_BITS = 220;
+
+	// Final: the groups returned by getGroup() are shared.
+	protected final BigInteger modulus;
+	protected final BigInteger generator;
+	// Zero if the private exponents are as long as the modulus.
+	protected int exponentBits;
+
+	// Parsed once: the groups never change.
+	private static DHGroup group14 = null;
 
 	public DHGroup(BigInteger p, BigInteger g) {
 		this.modulus = p;
 		this.generator = g;
+		this.exponentBits = 0;
 	}
 	
-	static public DHGroup getGroup(int groupid) throws NoSuchAlgorithmException {
+	static public synchronized DHGroup getGroup(int groupid) throws NoSuchAlgorithmException {
 		switch (groupid) {
 		case 0:
 		case 14:
+			if (group14 != null) {
+				return group14;
+			}
 			BigInteger p = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
 			BigInteger g = new BigInteger("2");
 			DHGroup ret = new DHGroup(p, g);
+			group14 = ret;
 			return ret;
 		}
 		throw new NoSuchAlgorithmException();
 	}
 	
+	/**
+	 * @param bits
+	 *            Length of the private exponents, or 0 for as long as the
+	 *            modulus. RFC 3526 says about twice the strength wanted is
+	 *            enough, which is much faster: for group 14, 256 or 320
+	 *            instead of 2048.
+	 * @return The same group, with private exponents of that length.
+	 */
+	public DHGroup withExponentBits(int bits) {
+		if (bits != 0 && (bits < MIN_EXPONENT_BITS || bits >= this.modulus.bitLength())) {
+			throw new IllegalArgumentException("bad exponent length: " + bits);
+		}
+		DHGroup ret = new DHGroup(this.modulus, this.generator);
+		ret.exponentBits = bits;
+		return ret;
+	}
+
+	public int getExponentBits() {
+		return this.exponentBits;
+	}
+	
 	public DHPrivateKey generatePrivateKey(Random random) {
+		if (this.exponentBits > 0) {
+			// The top bit is set, so that the exponent is never shorter.
+			BigInteger x = new BigInteger(this.exponentBits - 1, random);
+			return new DHPrivateKey(x.setBit(this.exponentBits - 1), this);
+		}
         int bits = modulus.bitLength();
         BigInteger max = modulus.subtract(BigInteger.ONE);
         DHPrivateKey privkey = null;
@@ -64,4 +104,21 @@ public class DHGroup {
 		return ret;
 	}
 
+	/**
+	 * Groups are equal if their keys can be used with each other, whatever
+	 * the length of their exponents.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof DHGroup)) {
+			return false;
+		}
+		DHGroup g = (DHGroup) o;
+		return this.modulus.equals(g.modulus) && this.generator.equals(g.generator);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.modulus.hashCode() + this.generator.hashCode();
+	}
 }
@@ -0,0 +1,41 @@
+package org.uniqush.diffiehellman;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DHGroupTest {
+
+	@Test
+	public void testShortExponents() throws Exception {
+		DHGroup full = DHGroup.getGroup(14);
+		DHGroup group = full.withExponentBits(256);
+		assertEquals(256, group.getExponentBits());
+		assertEquals(0, full.getExponentBits());
+		if (!group.equals(full)) {
+			fail("should be the same group");
+		}
+
+		SecureRandom random = new SecureRandom();
+		DHPrivateKey a = group.generatePrivateKey(random);
+		DHPrivateKey b = full.generatePrivateKey(random);
+		assertEquals(256, a.x.bitLength());
+		byte[] k1 = group.computeKey(b.getPublicKey(), a);
+		byte[] k2 = full.computeKey(a.getPublicKey(), b);
+		if (!Arrays.equals(k1, k2)) {
+			fail("keys do not agree");
+		}
+
+		int[] bad = { 1, DHGroup.MIN_EXPONENT_BITS - 1, 2048 };
+		for (int i = 0; i < bad.length; i++) {
+			try {
+				full.withExponentBits(bad[i]);
+				fail(bad[i] + " bits should be refused");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.uniqush.diffiehellman;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keys of a group computed ahead of time, so that a handshake does not
+ * wait for the exponentiation of its public key.
+ *
+ * Each key is handed out once. Whenever one is taken, another one is
+ * computed in the background. If the pool is empty, as it may be when
+ * many connections are made at once, take() computes the key itself.
+ */
+public class DHKeyPool {
+	private final DHGroup group;
+	private final int size;
+	private final Executor executor;
+	// Null if the executor is not ours.
+	private final ExecutorService ownExecutor;
+	private final SecureRandom random;
+
+	private final ConcurrentLinkedQueue<DHPrivateKey> keys;
+	// Keys in the queue plus keys being computed.
+	private final AtomicInteger count;
+	private volatile boolean closed;
+
+	private final Runnable generator = new Runnable() {
+		public void run() {
+			if (closed) {
+				count.decrementAndGet();
+				return;
+			}
+			try {
+				DHPrivateKey key = group.generatePrivateKey(random);
+				if (!closed) {
+					keys.add(key);
+				}
+			} catch (RuntimeException e) {
+				count.decrementAndGet();
+				throw e;
+			}
+		}
+	};
+
+	/**
+	 * Compute the keys in a thread of the pool's own, with the lowest
+	 * priority, so that it only uses otherwise idle cores.
+	 *
+	 * @param size
+	 *            Number of keys kept ready.
+	 */
+	public DHKeyPool(DHGroup group, int size) {
+		this(group, size, null);
+	}
+
+	/**
+	 * @param executor
+	 *            Where to compute the keys. Give it several threads to keep
+	 *            up with many connections at once. If null, the pool has a
+	 *            thread of its own.
+	 */
+	public DHKeyPool(DHGroup group, int size, Executor executor) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size should be positive");
+		}
+		this.group = group;
+		this.size = size;
+		if (executor == null) {
+			this.ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "uniqush-dh-keys");
+					th.setDaemon(true);
+					th.setPriority(Thread.MIN_PRIORITY);
+					return th;
+				}
+			});
+			executor = this.ownExecutor;
+		} else {
+			this.ownExecutor = null;
+		}
+		this.executor = executor;
+		this.random = new SecureRandom();
+		this.keys = new ConcurrentLinkedQueue<DHPrivateKey>();
+		this.count = new AtomicInteger(0);
+		refill();
+	}
+
+	public DHGroup getGroup() {
+		return this.group;
+	}
+
+	/**
+	 * @return Number of keys ready to be taken.
+	 */
+	public int available() {
+		return this.keys.size();
+	}
+
+	/**
+	 * @return A key nobody else got.
+	 */
+	public DHPrivateKey take() {
+		DHPrivateKey key = this.keys.poll();
+		if (key != null) {
+			this.count.decrementAndGet();
+		}
+		refill();
+		if (key == null) {
+			key = this.group.generatePrivateKey(this.random);
+		}
+		return key;
+	}
+
+	private void refill() {
+		while (!this.closed) {
+			int n = this.count.get();
+			if (n >= this.size) {
+				return;
+			}
+			if (!this.count.compareAndSet(n, n + 1)) {
+				continue;
+			}
+			try {
+				this.executor.execute(this.generator);
+			} catch (RejectedExecutionException e) {
+				this.count.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop computing keys, and forget the ones not taken. The executor is
+	 * only shut down if it is the pool's own. Keys computed after that are
+	 * thrown away. take() still works, without the pool.
+	 */
+	public void shutdown() {
+		this.closed = true;
+		if (this.ownExecutor != null) {
+			this.ownExecutor.shutdownNow();
+		}
+		this.keys.clear();
+	}
+}
@@ -0,0 +1,59 @@
+package org.uniqush.diffiehellman;
+
+import static org.junit.Assert.*;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+public class DHKeyPoolTest {
+
+	@Test
+	public void testTakeOnce() throws Exception {
+		DHGroup group = DHGroup.getGroup(14);
+		// Compute the keys right away, to know when they are there.
+		Executor now = new Executor() {
+			public void execute(Runnable r) {
+				r.run();
+			}
+		};
+		DHKeyPool pool = new DHKeyPool(group, 3, now);
+		assertEquals(3, pool.available());
+
+		DHPrivateKey[] keys = new DHPrivateKey[5];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = pool.take();
+			assertEquals(3, pool.available());
+			for (int j = 0; j < i; j++) {
+				if (keys[i] == keys[j] || keys[i].x.equals(keys[j].x)) {
+					fail("key " + i + " taken twice");
+				}
+			}
+		}
+
+		DHPrivateKey mine = group.generatePrivateKey(new SecureRandom());
+		byte[] k1 = group.computeKey(keys[0].getPublicKey(), mine);
+		byte[] k2 = group.computeKey(mine.getPublicKey(), keys[0]);
+		if (!Arrays.equals(k1, k2)) {
+			fail("pooled key does not agree");
+		}
+
+		pool.shutdown();
+		assertEquals(0, pool.available());
+		if (pool.take() == null) {
+			fail("no key after shutdown");
+		}
+		assertEquals("refilled after shutdown", 0, pool.available());
+	}
+
+	@Test
+	public void testPublicKeyLength() {
+		DHPublicKey pub = new DHPublicKey(new byte[] { 0, 1, 2 });
+		byte[] b = pub.toByteArray(4);
+		if (!Arrays.equals(new byte[] { 0, 0, 1, 2 }, b)) {
+			fail("should be padded: " + Arrays.toString(b));
+		}
+	}
+}
@@ -22,4 +22,21 @@ public class DHPublicKey {
 		}
 		return b;
 	}
+
+	/**
+	 * @return The key in big endian, padded with leading zeros to length
+	 *         bytes.
+	 */
+	public byte[] toByteArray(int length) {
+		byte[] b = toByteArray();
+		if (b.length == length) {
+			return b;
+		}
+		if (b.length > length) {
+			throw new IllegalArgumentException("the key is longer than " + length + " bytes");
+		}
+		byte[] ret = new byte[length];
+		System.arraycopy(b, 0, ret, length - b.length, b.length);
+		return ret;
+	}
 }
@@ -0,0 +1,88 @@
+package org.uniqush.examples.java;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import org.uniqush.diffiehellman.DHGroup;
+import org.uniqush.diffiehellman.DHPrivateKey;
+import org.uniqush.diffiehellman.DHPublicKey;
+
+/**
+ * Measures the CPU time the client spends on Diffie-Hellman per connect,
+ * with private exponents as long as the modulus and with shorter ones
+ * (see MessageCenter.setDHExponentBits()).
+ *
+ * Usage: DHBenchmark [connects [bits...]]
+ *
+ * By default, 200 connects with 2048 (full), 320 and 256 bit exponents.
+ */
+public class DHBenchmark {
+
+	private static long cpuTime(ThreadMXBean mx) {
+		if (mx.isCurrentThreadCpuTimeSupported()) {
+			return mx.getCurrentThreadCpuTime();
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * @param bits
+	 *            Length of the exponents, 0 for full length.
+	 * @return CPU nanoseconds per connect: our key, then the shared secret.
+	 */
+	public static long run(int bits, int connects) throws NoSuchAlgorithmException {
+		DHGroup group = DHGroup.getGroup(14);
+		if (bits > 0) {
+			group = group.withExponentBits(bits);
+		}
+		SecureRandom random = new SecureRandom();
+		// The server's key is as it always was.
+		DHPublicKey server = DHGroup.getGroup(14).generatePrivateKey(random).getPublicKey();
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+		// Once for the JIT.
+		for (int i = 0; i < connects / 10 + 1; i++) {
+			group.computeKey(server, group.generatePrivateKey(random));
+		}
+		long start = cpuTime(mx);
+		for (int i = 0; i < connects; i++) {
+			DHPrivateKey mine = group.generatePrivateKey(random);
+			group.computeKey(server, mine);
+		}
+		return (cpuTime(mx) - start) / connects;
+	}
+
+	public static void main(String[] argv) throws NoSuchAlgorithmException {
+		int connects = 200;
+		int[] bits = { 0, 320, 256 };
+		if (argv.length > 0) {
+			connects = Integer.parseInt(argv[0]);
+		}
+		if (argv.length > 1) {
+			bits = new int[argv.length - 1];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = Integer.parseInt(argv[i + 1]);
+			}
+		}
+		long[] t = new long[bits.length];
+		long full = -1;
+		for (int i = 0; i < bits.length; i++) {
+			t[i] = run(bits[i], connects);
+			if (bits[i] == 0) {
+				full = t[i];
+			}
+		}
+		for (int i = 0; i < bits.length; i++) {
+			String name = bits[i] == 0 ? "2048 (full)" : String.valueOf(bits[i]);
+			String saved = "";
+			if (bits[i] != 0 && full > 0) {
+				saved = ", saves " + (full - t[i]) / 1000 + " us ("
+						+ (100 * (full - t[i]) / full) + "%)";
+			}
+			System.out.println(name + " bit exponents: " + t[i] / 1000
+					+ " us per connect" + saved);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.uniqush.examples.java;
+
+import java.util.Map;
+
+import org.uniqush.client.Message;
+import org.uniqush.client.MessageHandler;
+
+/**
+ * Ignores everything. Used by the benchmarks, which only care about the
+ * connections.
+ */
+public class QuietHandler implements MessageHandler {
+	public void onMessageFromServer(String dstService, String dstUser,
+			String id, Message msg) {
+	}
+
+	public void onMessageFromUser(String dstService, String dstUser,
+			String srcService, String srcUser, String id, Message msg) {
+	}
+
+	public void onMessageDigestFromServer(boolean online,
+			String dstService, String dstUser, int size, String id,
+			Map<String, String> parameters) {
+	}
+
+	public void onMessageDigestFromUser(boolean online,
+			String dstService, String dstUser, String srcService,
+			String srcUser, int size, String id,
+			Map<String, String> parameters) {
+	}
+
+	public void onCloseStart() {
+	}
+
+	public void onClosed() {
+	}
+
+	public void onError(Exception e) {
+	}
+}
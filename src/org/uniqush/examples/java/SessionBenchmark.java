@@ -0,0 +1,110 @@
+package org.uniqush.examples.java;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.uniqush.client.CredentialProvider;
+import org.uniqush.client.MessageCenter;
+import org.uniqush.client.VirtualThreads;
+
+/**
+ * Opens as many connections as it can (up to a limit) from one JVM, each
+ * served by its own reader thread, and reports how many it got and what
+ * they cost.
+ *
+ * Usage: SessionBenchmark host port platform|virtual maxSessions
+ *
+ * Run it once with platform threads and once with virtual threads (JDK
+ * 21+) against the same server, with the same -Xmx/-Xss, to compare. The
+ * server and the OS (ulimit -n) should allow that many connections.
+ */
+public class SessionBenchmark {
+
+	public static class Result {
+		public int sessions;
+		public long millis;
+		public long heapBytes;
+		public int platformThreads;
+		public Throwable stoppedBy;
+
+		public String toString() {
+			String s = sessions + " sessions in " + millis + " ms, heap "
+					+ (heapBytes / (1024 * 1024)) + " MB, "
+					+ platformThreads + " platform threads";
+			if (stoppedBy != null) {
+				s += ", stopped by " + stoppedBy;
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Connect up to maxSessions message centers and keep them open until
+	 * the measurement is taken. They are all stopped before returning.
+	 */
+	public static Result run(CredentialProvider cp, String host, int port,
+			boolean virtual, int maxSessions) {
+		Result res = new Result();
+		List<MessageCenter> centers = new ArrayList<MessageCenter>();
+		long start = System.currentTimeMillis();
+		// Connect in batches so that the server is not flooded with
+		// handshakes.
+		int batch = 100;
+		try {
+			while (centers.size() < maxSessions && res.stoppedBy == null) {
+				List<CompletableFuture<MessageCenter>> futures = new ArrayList<CompletableFuture<MessageCenter>>();
+				for (int i = 0; i < batch && centers.size() + futures.size() < maxSessions; i++) {
+					MessageCenter center = new MessageCenter(cp);
+					if (virtual) {
+						center.setThreadFactory(VirtualThreads.factory("uniqush-"));
+					}
+					futures.add(center.start(host, port, "service", "user"
+							+ (centers.size() + futures.size()), new QuietHandler()));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						centers.add(futures.get(i).get(60, TimeUnit.SECONDS));
+					} catch (Exception e) {
+						res.stoppedBy = e;
+					}
+				}
+			}
+		} catch (OutOfMemoryError e) {
+			// Usually "unable to create native thread".
+			res.stoppedBy = e;
+		}
+		res.millis = System.currentTimeMillis() - start;
+		res.sessions = centers.size();
+
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		res.heapBytes = rt.totalMemory() - rt.freeMemory();
+		// Virtual threads are not counted here.
+		res.platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		for (int i = 0; i < centers.size(); i++) {
+			centers.get(i).stop();
+		}
+		return res;
+	}
+
+	public static void main(String[] argv) {
+		if (argv.length != 4) {
+			System.err.println("usage: SessionBenchmark host port platform|virtual maxSessions");
+			System.exit(1);
+		}
+		String host = argv[0];
+		int port = Integer.parseInt(argv[1]);
+		boolean virtual = argv[2].equals("virtual");
+		int max = Integer.parseInt(argv[3]);
+		if (virtual && !VirtualThreads.isAvailable()) {
+			System.err.println("virtual threads need JDK 21 or later");
+			System.exit(1);
+		}
+		Result res = run(new UserCredentialProvider(), host, port, virtual, max);
+		System.out.println((virtual ? "virtual" : "platform") + ": " + res);
+	}
+}
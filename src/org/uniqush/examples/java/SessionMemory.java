@@ -0,0 +1,144 @@
+package org.uniqush.examples.java;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.uniqush.client.CredentialProvider;
+import org.uniqush.client.MessageCenter;
+import org.uniqush.client.NioEngine;
+
+/**
+ * Measures the heap kept by each idle connection. It opens connections
+ * on one NioEngine in steps (1k, 10k and 100k by default), lets them go
+ * quiet, and reports the retained heap per connection at each step.
+ *
+ * Usage: SessionMemory host port idleMillis [sessions...]
+ *
+ * With idleMillis 0, the connections never shrink, which is the number
+ * to compare with. Run it with a fixed heap (-Xms = -Xmx) so that the
+ * measurement is not disturbed by the heap resizing. The server and the
+ * OS (ulimit -n) should allow that many connections.
+ */
+public class SessionMemory {
+
+	public static class Step {
+		public int sessions;
+		// Connections which failed so far, and were replaced.
+		public int failures;
+		public long heapBytes;
+		public long bytesPerSession;
+
+		public String toString() {
+			return sessions + " sessions: heap " + (heapBytes / 1024)
+					+ " KB, " + bytesPerSession + " bytes per session, "
+					+ failures + " failed connections";
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// Take the lowest of a few collections, to leave out what is
+		// just garbage.
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Open the connections, step by step, and measure. They are all
+	 * stopped before returning.
+	 *
+	 * @param steps
+	 *            Total number of connections at each step, increasing.
+	 */
+	public static List<Step> run(CredentialProvider cp, String host,
+			int port, long idleMillis, int[] steps) throws IOException {
+		NioEngine engine = new NioEngine();
+		List<MessageCenter> centers = new ArrayList<MessageCenter>();
+		List<Step> res = new ArrayList<Step>();
+		int failures = 0;
+		long base = usedHeap();
+		try {
+			for (int s = 0; s < steps.length; s++) {
+				// Connect in batches so that the server is not flooded
+				// with handshakes.
+				while (centers.size() < steps[s]) {
+					List<CompletableFuture<MessageCenter>> futures = new ArrayList<CompletableFuture<MessageCenter>>();
+					for (int i = 0; i < 100 && centers.size() + futures.size() < steps[s]; i++) {
+						MessageCenter center = new MessageCenter(cp, engine);
+						center.setIdleTimeout(idleMillis, TimeUnit.MILLISECONDS);
+						futures.add(center.connectAsync(host, port, "service",
+								"user" + (centers.size() + futures.size()),
+								new QuietHandler()));
+					}
+					for (int i = 0; i < futures.size(); i++) {
+						try {
+							centers.add(futures.get(i).get(60, TimeUnit.SECONDS));
+						} catch (Exception e) {
+							// Try another one, unless the server is
+							// turning everyone away.
+							failures++;
+							if (failures > 100 + centers.size() / 10) {
+								throw new IOException("too many failed connections", e);
+							}
+						}
+					}
+				}
+
+				// Let them all go idle. The event loops look once a second.
+				try {
+					Thread.sleep(idleMillis + 2000);
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				Step step = new Step();
+				step.sessions = centers.size();
+				step.failures = failures;
+				step.heapBytes = usedHeap() - base;
+				step.bytesPerSession = step.heapBytes / step.sessions;
+				res.add(step);
+			}
+		} finally {
+			for (int i = 0; i < centers.size(); i++) {
+				centers.get(i).stop();
+			}
+			engine.shutdown();
+		}
+		return res;
+	}
+
+	public static void main(String[] argv) throws IOException {
+		if (argv.length < 3) {
+			System.err.println("usage: SessionMemory host port idleMillis [sessions...]");
+			System.exit(1);
+		}
+		String host = argv[0];
+		int port = Integer.parseInt(argv[1]);
+		long idleMillis = Long.parseLong(argv[2]);
+		int[] steps = { 1000, 10000, 100000 };
+		if (argv.length > 3) {
+			steps = new int[argv.length - 3];
+			for (int i = 0; i < steps.length; i++) {
+				steps[i] = Integer.parseInt(argv[i + 3]);
+			}
+		}
+		List<Step> res = run(new UserCredentialProvider(), host, port,
+				idleMillis, steps);
+		for (int i = 0; i < res.size(); i++) {
+			System.out.println((idleMillis > 0 ? "idle mode" : "no idle mode")
+					+ ": " + res.get(i));
+		}
+	}
+}